@@ -0,0 +1,96 @@
+package com.coonrade.organizedpermissions;
+
+import android.os.Build;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Puts the library in the same state it is in on a Marshmallow or newer device
+ */
+final class BenchmarkEnvironment {
+
+    // Groups whose permissions are in every generated manifest
+    static final PermissionGroupSet MANIFEST_GROUPS = PermissionGroupSet.of(PermissionGroup.CAMERA,
+            PermissionGroup.CONTACTS, PermissionGroup.LOCATION, PermissionGroup.STORAGE);
+
+    // Group that is never in the generated manifests, checking it is an error
+    @PermissionGroup
+    static final int MISSING_GROUP = PermissionGroup.SMS;
+
+    // Manifest size for benchmarks that seed the index, it doesn't change what they measure
+    static final int MANIFEST_SIZE = 60;
+
+    private BenchmarkEnvironment() {}
+
+    static void setUp(String[] manifestPermissions) throws Exception {
+        // The mockable android.jar reports SDK_INT 0 which would skip runtime permissions entirely
+        setSdkInt(Build.VERSION_CODES.M);
+
+        // Same index the library builds from the package manager on the first check
+        PermissionUtil.initManifestIndex(manifestPermissions);
+        SharedGrantSnapshot.initDisabled();
+    }
+
+    /**
+     * Manifest with size permissions, every permission of MANIFEST_GROUPS first
+     * and the rest filled with permissions that are not in any group, like most of a real manifest
+     */
+    static String[] createManifest(int size) {
+        String[] manifestPermissions = new String[size];
+        int i = 0;
+
+        for (int remaining = MANIFEST_GROUPS.getMask(); remaining != 0 && i < size; remaining &= remaining - 1) {
+            for (String permission : PermissionUtil.getPermissionsFromGroup(Integer.numberOfTrailingZeros(remaining))) {
+                if (i < size) {
+                    manifestPermissions[i++] = permission;
+                }
+            }
+        }
+
+        while (i < size) {
+            manifestPermissions[i] = "com.coonrade.organizedpermissions.benchmarks.permission.CUSTOM_" + i;
+            i++;
+        }
+
+        return manifestPermissions;
+    }
+
+    /**
+     * Every permission of MANIFEST_GROUPS, what an app that was granted everything it asked for would have
+     */
+    static String[] getGrantedPermissions() {
+        List<String> grantedPermissions = new ArrayList<>();
+
+        for (int remaining = MANIFEST_GROUPS.getMask(); remaining != 0; remaining &= remaining - 1) {
+            grantedPermissions.addAll(Arrays.asList(
+                    PermissionUtil.getPermissionsFromGroup(Integer.numberOfTrailingZeros(remaining))));
+        }
+
+        return grantedPermissions.toArray(new String[grantedPermissions.size()]);
+    }
+
+    private static void setSdkInt(int sdkInt) throws Exception {
+        Field field = Build.VERSION.class.getField("SDK_INT");
+        field.setAccessible(true);
+
+        // SDK_INT is final, which only reflection on Java 8 (the JDK the android tools run on) lets go of
+        if (Modifier.isFinal(field.getModifiers())) {
+            Field modifiers;
+
+            try {
+                modifiers = Field.class.getDeclaredField("modifiers");
+            } catch (NoSuchFieldException e) {
+                throw new IllegalStateException("Benchmarks have to run on Java 8", e);
+            }
+
+            modifiers.setAccessible(true);
+            modifiers.setInt(field, field.getModifiers() & ~Modifier.FINAL);
+        }
+
+        field.setInt(null, sdkInt);
+    }
+}
@@ -0,0 +1,82 @@
+package com.coonrade.organizedpermissions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole check() decision for requests that don't need the user: granted and missing from the manifest
+ * Requests that need the user go to the main thread and an activity, which don't exist on the JVM
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CheckBenchmark {
+
+    private FakeApplication context;
+    private CountingListener listener;
+    private PreparedPermissionRequest preparedRequest;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkEnvironment.setUp(BenchmarkEnvironment.createManifest(BenchmarkEnvironment.MANIFEST_SIZE));
+
+        context = new FakeApplication(BenchmarkEnvironment.getGrantedPermissions());
+        listener = new CountingListener();
+        preparedRequest = OrganizedPermissions.init(context, BenchmarkEnvironment.MANIFEST_GROUPS)
+                .setListener(listener)
+                .build();
+    }
+
+    /**
+     * Builder and check() on every call, the way most apps call the library
+     */
+    @Benchmark
+    public int checkGranted() {
+        OrganizedPermissions.init(context, BenchmarkEnvironment.MANIFEST_GROUPS)
+                .setListener(listener)
+                .check();
+
+        return listener.calls;
+    }
+
+    /**
+     * Request built once and checked repeatedly
+     */
+    @Benchmark
+    public int preparedCheckGranted() {
+        preparedRequest.check();
+        return listener.calls;
+    }
+
+    @Benchmark
+    public int checkMissingInManifest() {
+        OrganizedPermissions.init(context, BenchmarkEnvironment.MISSING_GROUP)
+                .setListener(listener)
+                .check();
+
+        return listener.calls;
+    }
+
+    private static class CountingListener extends PermissionListener {
+        int calls;
+
+        @Override
+        public void onPermissionsGranted(int requestCode) {
+            calls++;
+        }
+
+        @Override
+        public void onPermissionsError(int requestCode, String errorMessage) {
+            calls++;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.coonrade.organizedpermissions;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Stand in for the app on the JVM, grants a fixed set of permissions
+ * It is its own application context so the library registers its lifecycle callbacks once like in an app
+ */
+class FakeApplication extends Application {
+
+    private final Set<String> grantedPermissions;
+
+    FakeApplication(String... grantedPermissions) {
+        this.grantedPermissions = new HashSet<>(Arrays.asList(grantedPermissions));
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "com.coonrade.organizedpermissions.benchmarks";
+    }
+
+    @Override
+    public int checkSelfPermission(String permission) {
+        return grantedPermissions.contains(permission) ? PackageManager.PERMISSION_GRANTED : PackageManager.PERMISSION_DENIED;
+    }
+}
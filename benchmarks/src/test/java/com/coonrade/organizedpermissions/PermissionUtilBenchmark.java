@@ -0,0 +1,91 @@
+package com.coonrade.organizedpermissions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building blocks of a check
+ * Only indexing the manifest depends on its size, everything else runs against the seeded index
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PermissionUtilBenchmark {
+
+    private FakeApplication context;
+    private String[] requestedPermissions;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkEnvironment.setUp(BenchmarkEnvironment.createManifest(BenchmarkEnvironment.MANIFEST_SIZE));
+
+        context = new FakeApplication(BenchmarkEnvironment.getGrantedPermissions());
+        requestedPermissions = BenchmarkEnvironment.MANIFEST_GROUPS.getPermissions();
+    }
+
+    /**
+     * Manifests of different sizes, only used by buildManifestIndex() so the other benchmarks run once
+     */
+    @State(Scope.Benchmark)
+    public static class Manifest {
+        @Param({"10", "60", "300"})
+        public int manifestSize;
+
+        String[] manifestPermissions;
+
+        @Setup
+        public void setUp() {
+            manifestPermissions = BenchmarkEnvironment.createManifest(manifestSize);
+        }
+    }
+
+    /**
+     * What the first check of the process pays to index the manifest
+     */
+    @Benchmark
+    public PermissionGroupIndex buildManifestIndex(Manifest manifest) {
+        return PermissionGroupIndex.build(manifest.manifestPermissions);
+    }
+
+    @Benchmark
+    public boolean arePermissionGroupsInManifest() {
+        return PermissionUtil.arePermissionGroupsInManifest(context, BenchmarkEnvironment.MANIFEST_GROUPS);
+    }
+
+    @Benchmark
+    public boolean arePermissionGroupsNotInManifest() {
+        return PermissionUtil.arePermissionGroupsInManifest(context,
+                PermissionGroupSet.of(BenchmarkEnvironment.MISSING_GROUP));
+    }
+
+    @Benchmark
+    public String[] formatPermissionGroups() {
+        return PermissionUtil.formatPermissionGroups(BenchmarkEnvironment.MANIFEST_GROUPS.getMask());
+    }
+
+    /**
+     * Asks the context about every permission, no caching
+     */
+    @Benchmark
+    public boolean arePermissionsGranted() {
+        return PermissionUtil.arePermissionsGranted(context, requestedPermissions);
+    }
+
+    /**
+     * Answered from the grant cache after the first call
+     */
+    @Benchmark
+    public boolean arePermissionGroupsGranted() {
+        return PermissionUtil.arePermissionGroupsGranted(context, BenchmarkEnvironment.MANIFEST_GROUPS);
+    }
+}
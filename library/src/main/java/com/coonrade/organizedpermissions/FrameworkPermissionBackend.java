@@ -0,0 +1,102 @@
+package com.coonrade.organizedpermissions;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.view.Choreographer;
+
+/**
+ * Backend that talks to Android
+ */
+final class FrameworkPermissionBackend implements PermissionBackend {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public boolean isRuntimePermissionsEnabled() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    @Nullable
+    @Override
+    public String[] getRequestedPermissions(@NonNull Context context) {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), PackageManager.GET_PERMISSIONS);
+
+            // requestedPermissions is null when the manifest has no permissions at all
+            return info.requestedPermissions != null ? info.requestedPermissions : new String[0];
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @Override
+    public int checkSelfPermission(@NonNull Context context, @NonNull String permission) {
+        return context.checkSelfPermission(permission);
+        //return ContextCompat.checkSelfPermission(context, permission);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @Override
+    public boolean shouldShowRequestPermissionRationale(@NonNull Activity activity, @NonNull String permission) {
+        return activity.shouldShowRequestPermissionRationale(permission);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @Override
+    public boolean startFragmentHost(@NonNull Activity activity, @NonNull PermissionRequest request) {
+        return PermissionsFragment.start(activity, request);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @Override
+    public boolean startActivityHost(@NonNull Context context, @NonNull PermissionRequest request) {
+        return PermissionsActivity.start(context, request);
+    }
+
+    @Override
+    public DialogInterface showDialog(@NonNull Activity activity, String title, String message,
+                                      @NonNull String positiveButton, @NonNull DialogInterface.OnClickListener positiveListener,
+                                      @NonNull String negativeButton, @NonNull DialogInterface.OnClickListener negativeListener) {
+        return new AlertDialog.Builder(activity).setTitle(title).setMessage(message).setCancelable(false)
+                .setPositiveButton(positiveButton, positiveListener)
+                .setNegativeButton(negativeButton, negativeListener)
+                .show();
+    }
+
+    @Override
+    public boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    @Override
+    public void postToMainThread(@NonNull Runnable runnable, long delayMillis) {
+        if (delayMillis > 0) {
+            handler.postDelayed(runnable, delayMillis);
+        } else {
+            handler.post(runnable);
+        }
+    }
+
+    @Override
+    public void postFrameCallback(@NonNull final Runnable runnable) {
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                runnable.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,301 @@
+package com.coonrade.organizedpermissions;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In memory grant state of every permission group so that checkSelfPermission()
+ * only has to be called when the state of a group is unknown
+ *
+ * Granted groups stay granted for the rest of the process because revoking a permission kills the process
+ * Denied groups can only become granted from the settings app while the app is in the background
+ * so they are forgotten whenever an activity resumes and checked again the next time they are needed
+ */
+final class GrantStateCache {
+
+    // Granted groups are stored in the low bits and denied groups in the high bits
+    // so both can be updated together with a single compare and set
+    private static final int DENIED_SHIFT = 16;
+
+    private static final AtomicInteger state = new AtomicInteger();
+
+    // Elapsed realtime of when each permission group was last seen blocked, 0 if it wasn't
+    // Blocked groups stay blocked until they are granted from the app's system settings
+    private static final AtomicLongArray blockedTimes = new AtomicLongArray(PermissionGroupIndex.GROUP_COUNT);
+
+    // Lifecycle callbacks are only registered once a permission is checked
+    private static volatile boolean lifecycleCallbacksRegistered;
+
+    private static final Application.ActivityLifecycleCallbacks lifecycleCallbacks = new Application.ActivityLifecycleCallbacks() {
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+        @Override
+        public void onActivityStarted(Activity activity) {}
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+            // Permissions could have been granted from the settings app while the app was in the background
+            GrantStateCache.onActivityResumed();
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {}
+
+        @Override
+        public void onActivityStopped(Activity activity) {}
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {}
+    };
+
+    private GrantStateCache() {}
+
+    /**
+     * Checks if every permission group in the set is granted
+     * Groups with a known state are answered from memory
+     * so the already granted case does not allocate or call into the system
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    static boolean arePermissionGroupsGranted(Context context, PermissionGroupSet permissionGroups) {
+        return arePermissionGroupsGranted(context, permissionGroups, null, 0);
+    }
+
+    /**
+     * Same as above, system calls are counted for the request code if metrics are given
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    static boolean arePermissionGroupsGranted(Context context, PermissionGroupSet permissionGroups,
+                                              @Nullable PermissionMetrics metrics, int requestCode) {
+        // Denied groups are only stored once something is checked, that's when resumes have to be tracked
+        ensureLifecycleCallbacks(context);
+        SharedGrantSnapshot.init(context);
+
+        int permissionGroupMask = permissionGroups.getMask();
+        int unknownGroupMask = permissionGroupMask & ~getGrantedMask() & ~takeSharedGrants(permissionGroupMask);
+
+        if (unknownGroupMask == 0) {
+            return true;
+        }
+
+        if ((getDeniedMask() & unknownGroupMask) != 0) {
+            return false;
+        }
+
+        PermissionTrace.beginSection("OrganizedPermissions.checkSelfPermission");
+
+        try {
+            for (int remaining = unknownGroupMask; remaining != 0; remaining &= remaining - 1) {
+                int permissionGroup = Integer.numberOfTrailingZeros(remaining);
+                boolean granted = PermissionUtil.isPermissionGranted(context, PermissionUtil.getPermissionFromGroup(permissionGroup));
+
+                if (metrics != null) {
+                    metrics.increment(requestCode, PermissionMetrics.COUNTER_CHECK_SELF_PERMISSION_CALLS);
+                }
+
+                update(granted ? 1 << permissionGroup : 0, granted ? 0 : 1 << permissionGroup);
+
+                if (!granted) {
+                    return false;
+                }
+            }
+        } finally {
+            PermissionTrace.endSection();
+        }
+
+        return true;
+    }
+
+    /**
+     * Asks the system about every permission group in the mask whose state is unknown
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    static void refresh(Context context, int permissionGroupMask) {
+        refresh(context, permissionGroupMask, null, 0);
+    }
+
+    /**
+     * Same as above, system calls are counted for the request code if metrics are given
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    static void refresh(Context context, int permissionGroupMask, @Nullable PermissionMetrics metrics, int requestCode) {
+        ensureLifecycleCallbacks(context);
+        SharedGrantSnapshot.init(context);
+        takeSharedGrants(permissionGroupMask);
+
+        int current = state.get();
+        int unknownGroupMask = permissionGroupMask & ~getGrantedMask(current) & ~getDeniedMask(current);
+        int grantedGroupMask = 0, deniedGroupMask = 0;
+
+        for (int remaining = unknownGroupMask; remaining != 0; remaining &= remaining - 1) {
+            int permissionGroup = Integer.numberOfTrailingZeros(remaining);
+
+            if (metrics != null) {
+                metrics.increment(requestCode, PermissionMetrics.COUNTER_CHECK_SELF_PERMISSION_CALLS);
+            }
+
+            if (PermissionUtil.isPermissionGranted(context, PermissionUtil.getPermissionFromGroup(permissionGroup))) {
+                grantedGroupMask |= 1 << permissionGroup;
+            } else {
+                deniedGroupMask |= 1 << permissionGroup;
+            }
+        }
+
+        update(grantedGroupMask, deniedGroupMask);
+    }
+
+    /**
+     * Other processes take what the main process knows is granted, also for groups they saw denied
+     * A process without activities never resumes one, so nothing else would make it forget a denied group
+     * @return permission groups in the mask that were granted according to the main process
+     */
+    private static int takeSharedGrants(int permissionGroupMask) {
+        int notGrantedMask = permissionGroupMask & ~getGrantedMask();
+
+        if (notGrantedMask == 0) {
+            return 0;
+        }
+
+        int sharedGrantedMask = SharedGrantSnapshot.readGrantedMask() & notGrantedMask;
+
+        if (sharedGrantedMask != 0) {
+            update(sharedGrantedMask, 0);
+        }
+
+        return sharedGrantedMask;
+    }
+
+    /**
+     * Stores the outcome of a permission request
+     */
+    static void update(int grantedGroupMask, int deniedGroupMask) {
+        int current, next;
+
+        do {
+            current = state.get();
+
+            // A group that was granted can't become denied while the process is alive
+            int granted = getGrantedMask(current) | grantedGroupMask;
+            int denied = (getDeniedMask(current) | deniedGroupMask) & ~granted;
+
+            next = granted | (denied << DENIED_SHIFT);
+        } while (current != next && !state.compareAndSet(current, next));
+
+        for (int remaining = grantedGroupMask; remaining != 0; remaining &= remaining - 1) {
+            blockedTimes.set(Integer.numberOfTrailingZeros(remaining), 0);
+        }
+
+        // Let the other processes know about newly granted groups
+        if (getGrantedMask(next) != getGrantedMask(current)) {
+            SharedGrantSnapshot.publish(getGrantedMask(next));
+            PermissionHistory.clearBlocked(grantedGroupMask);
+        }
+    }
+
+    /**
+     * Remembers when permission groups were blocked (denied with "never ask again")
+     */
+    static void setPermissionGroupsBlocked(int blockedGroupMask) {
+        long now = SystemClock.elapsedRealtime();
+
+        for (int remaining = blockedGroupMask; remaining != 0; remaining &= remaining - 1) {
+            blockedTimes.set(Integer.numberOfTrailingZeros(remaining), now);
+        }
+    }
+
+    /**
+     * @return permission groups that were seen blocked within the last cooldownMillis
+     */
+    static int getRecentlyBlockedMask(long cooldownMillis) {
+        long since = SystemClock.elapsedRealtime() - cooldownMillis;
+        int blockedGroupMask = 0;
+
+        for (int permissionGroup = 0; permissionGroup < PermissionGroupIndex.GROUP_COUNT; permissionGroup++) {
+            long blockedTime = blockedTimes.get(permissionGroup);
+
+            if (blockedTime != 0 && blockedTime >= since) {
+                blockedGroupMask |= 1 << permissionGroup;
+            }
+        }
+
+        return blockedGroupMask & ~getGrantedMask();
+    }
+
+    /**
+     * Registers the activity lifecycle callbacks the first time this is called
+     * Nothing is registered in processes that never check a permission
+     */
+    private static void ensureLifecycleCallbacks(Context context) {
+        if (lifecycleCallbacksRegistered) {
+            return;
+        }
+
+        synchronized (lifecycleCallbacks) {
+            if (lifecycleCallbacksRegistered) {
+                return;
+            }
+
+            Context applicationContext = context.getApplicationContext();
+
+            if (applicationContext instanceof Application) {
+                ((Application) applicationContext).registerActivityLifecycleCallbacks(lifecycleCallbacks);
+                lifecycleCallbacksRegistered = true;
+            }
+        }
+    }
+
+    /**
+     * Called every time an activity of the app resumes
+     * The user may have granted permissions in the settings app while the app was in the background
+     * so every denied group has to be checked again
+     */
+    static void onActivityResumed() {
+        int current, next;
+
+        do {
+            current = state.get();
+            next = getGrantedMask(current);
+        } while (current != next && !state.compareAndSet(current, next));
+    }
+
+    /**
+     * Forgets everything, like a new process would
+     */
+    @VisibleForTesting
+    static void reset() {
+        state.set(0);
+
+        for (int permissionGroup = 0; permissionGroup < PermissionGroupIndex.GROUP_COUNT; permissionGroup++) {
+            blockedTimes.set(permissionGroup, 0);
+        }
+    }
+
+    static int getGrantedMask() {
+        return getGrantedMask(state.get());
+    }
+
+    static int getDeniedMask() {
+        return getDeniedMask(state.get());
+    }
+
+    private static int getGrantedMask(int state) {
+        return state & 0xFFFF;
+    }
+
+    private static int getDeniedMask(int state) {
+        return state >>> DENIED_SHIFT;
+    }
+}
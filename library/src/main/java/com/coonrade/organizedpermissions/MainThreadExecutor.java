@@ -0,0 +1,28 @@
+package com.coonrade.organizedpermissions;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Posts work to the main thread, the only thread that can start requests and show dialogs
+ */
+final class MainThreadExecutor implements Executor {
+
+    static final MainThreadExecutor INSTANCE = new MainThreadExecutor();
+
+    private MainThreadExecutor() {}
+
+    static boolean isMainThread() {
+        return PermissionBackends.get().isMainThread();
+    }
+
+    @Override
+    public void execute(@NonNull Runnable runnable) {
+        PermissionBackends.get().postToMainThread(runnable, 0);
+    }
+
+    void executeDelayed(@NonNull Runnable runnable, long delayMillis) {
+        PermissionBackends.get().postToMainThread(runnable, delayMillis);
+    }
+}
@@ -1,18 +1,16 @@
 package com.coonrade.organizedpermissions;
 
+import android.app.Application;
 import android.content.Context;
-import android.content.Intent;
 
-import com.coonrade.organizedpermissions.util.ArrayUtil;
 import com.coonrade.organizedpermissions.util.ContextProvider;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.Executor;
 
 public class OrganizedPermissions {
     private Context context;
     private PermissionListener permissionListener;
-    private Integer[] permissionGroups;
+    private PermissionGroupSet permissionGroups;
 
     // Rationale dialog is NOT enabled by default
     // Blocked dialog is enabled by default
@@ -25,6 +23,15 @@ public class OrganizedPermissions {
     // It is turned on by default
     private boolean enableBackgroundDim = true;
 
+    // When check() is called with a live activity the request runs inside it through a headless fragment
+    // instead of launching PermissionsActivity. It is turned on by default
+    // Falls back to PermissionsActivity for non activity contexts (for example ContextProvider.get())
+    private boolean enableHeadlessRequest = true;
+
+    // Repeated requests for groups that were blocked within this window are answered without showing anything
+    // It is turned off (0) by default
+    private long blockedCooldownMillis = 0;
+
     private static final String DEFAULT_RATIONALE_DIALOG_TITLE = "Permissions Request";
 
     private static final String DEFAULT_RATIONALE_DIALOG_MESSAGE =
@@ -37,41 +44,79 @@ public class OrganizedPermissions {
 
     private static final int DEFAULT_REQUEST_CODE = 0;
 
-    private static final String ERROR_MESSAGE_MISSING_PERMISSIONS_IN_MANIFEST = "Permission(s) are missing in the manifest";
+    private static final String ERROR_MESSAGE_NOT_INSTALLED =
+            "ContextProvider was removed from the manifest, call OrganizedPermissions.install() or pass a context to init()";
 
+    /**
+     * Only needed when ContextProvider was removed from the manifest, for example with
+     * tools:node="remove", so that processes that never check permissions don't pay for it at startup
+     * Call it any time before the first init() that doesn't take a context
+     */
     @SuppressWarnings("unused")
-    public static OrganizedPermissions init(@PermissionGroup int permission, @PermissionGroup int... permissions) {
-        return new OrganizedPermissions(mergePermissionWithPermissions(permission, permissions));
+    public static void install(Application application) {
+        if (ContextProvider.get() == null) {
+            ContextProvider.install(application);
+
+            // Reads manifest and grant state in the background if the app turned it on
+            PermissionPrewarm.startIfEnabled(application);
+        }
     }
 
+    /**
+     * State of every permission group for screens that only show it, never starts a request or an activity
+     * GRANTED is always reliable, the other states depend on what is passed:
+     *
+     * With only a context DENIED and BLOCKED come from the history of requests made through the library
+     * A blocked group is reported as DENIED once its history is a day old,
+     * and groups denied or blocked before the library kept a history are reported as NEVER_ASKED
+     *
+     * With an activity the system is asked about every group that isn't granted
+     * DENIED is then reliable, a group the library requested before that gets no rationale is BLOCKED
+     * (a group reset to "ask" in the settings app looks the same until it is requested)
+     * Groups blocked before the library kept a history still look NEVER_ASKED,
+     * Android itself can't tell them apart without a request
+     */
     @SuppressWarnings("unused")
-    public static OrganizedPermissions init(Context context, @PermissionGroup int permission, @PermissionGroup int... permissions) {
-        return new OrganizedPermissions(context, mergePermissionWithPermissions(permission, permissions));
+    public static PermissionStatus status(Context context) {
+        return PermissionStatus.create(context);
     }
 
     /**
      * In order to create a compile check to require at least one permission
      * but also let permissions be passed as varargs,
      * we must split them into two args in the init() func
-     * This takes both of them and merges into one
+     * PermissionGroupSet merges both of them into one
      */
-    private static Integer[] mergePermissionWithPermissions(@PermissionGroup int permissionGroup, @PermissionGroup int... permissionGroups) {
-        List<Integer> mergedPermissions = new ArrayList<>();
-        mergedPermissions.add(permissionGroup);
+    @SuppressWarnings("unused")
+    public static OrganizedPermissions init(@PermissionGroup int permission, @PermissionGroup int... permissions) {
+        return new OrganizedPermissions(PermissionGroupSet.of(permission, permissions));
+    }
 
-        for (int permissionGroupFromArray : permissionGroups) {
-            mergedPermissions.add(permissionGroupFromArray);
-        }
+    @SuppressWarnings("unused")
+    public static OrganizedPermissions init(Context context, @PermissionGroup int permission, @PermissionGroup int... permissions) {
+        return new OrganizedPermissions(context, PermissionGroupSet.of(permission, permissions));
+    }
+
+    @SuppressWarnings("unused")
+    public static OrganizedPermissions init(PermissionGroupSet permissions) {
+        return new OrganizedPermissions(permissions);
+    }
 
-        return ArrayUtil.listToIntegerArray(mergedPermissions);
+    @SuppressWarnings("unused")
+    public static OrganizedPermissions init(Context context, PermissionGroupSet permissions) {
+        return new OrganizedPermissions(context, permissions);
     }
 
-    private OrganizedPermissions(Integer[] permissions) {
+    private OrganizedPermissions(PermissionGroupSet permissions) {
         context = ContextProvider.get();
         permissionGroups = permissions;
+
+        if (context == null) {
+            throw new IllegalStateException(ERROR_MESSAGE_NOT_INSTALLED);
+        }
     }
 
-    private OrganizedPermissions(Context context, Integer[] permissions) {
+    private OrganizedPermissions(Context context, PermissionGroupSet permissions) {
         this.context = context;
         permissionGroups = permissions;
     }
@@ -125,98 +170,96 @@ public class OrganizedPermissions {
         return this;
     }
 
+    // Set false to always run the request in PermissionsActivity, even when the context is an activity
     @SuppressWarnings("unused")
-    public void check() {
-        checkPermissions(DEFAULT_REQUEST_CODE);
+    public OrganizedPermissions enableHeadlessRequest(boolean enableHeadlessRequest) {
+        this.enableHeadlessRequest = enableHeadlessRequest;
+        return this;
     }
 
+    /**
+     * While a permission group that was blocked less than cooldownMillis ago is requested again
+     * onPermissionsBlocked() is called right away instead of going through the system and the blocked dialog
+     * Only used if every requested group is either granted or recently blocked
+     */
     @SuppressWarnings("unused")
-    public void check(int requestCode) {
-        checkPermissions(requestCode);
-    }
-
-    private void checkPermissions(int requestCode) {
-        if (PermissionUtil.isRuntimePermissionsEnabled()) {
-            // Check to make sure each permission group has at least one permission in the manifest
-            // If that's not the case then throw error to avoid strange runtime bugs
-            if (PermissionUtil.arePermissionGroupsInManifest(context, permissionGroups)) {
-                String[] permissions = PermissionUtil.formatPermissionGroups(permissionGroups);
-                if (PermissionUtil.arePermissionsGranted(context, permissions)) {
-                    permissionsGranted(requestCode);
-                } else {
-                    requestPermissionInActivity(requestCode, permissions);
-                }
-            } else {
-                permissionsError(requestCode, ERROR_MESSAGE_MISSING_PERMISSIONS_IN_MANIFEST);
-            }
-        } else { // Pre Marshmallow android version, doesn't have runtime permissions
-            permissionsGranted(requestCode);
-        }
+    public OrganizedPermissions blockedCooldown(long cooldownMillis) {
+        blockedCooldownMillis = cooldownMillis;
+        return this;
     }
 
-    private void permissionsGranted(int requestCode) {
-        if (permissionListener != null)
-            permissionListener.onPermissionsGranted(requestCode);
+    /**
+     * Validates and resolves everything once
+     * Keep the returned request around when check() is called repeatedly for the same permission groups
+     * It holds on to the context passed to init() so it shouldn't outlive that context
+     */
+    @SuppressWarnings("unused")
+    public PreparedPermissionRequest build() {
+        // Checks if title/message was added for the dialogs and uses the ones provided or default
+        return new PreparedPermissionRequest(new PermissionRequest(context, enableHeadlessRequest,
+                permissionGroups, DEFAULT_REQUEST_CODE, permissionListener,
+                enableRationaleDialog,
+                !rationaleDialogTitle.isEmpty() ? rationaleDialogTitle : DEFAULT_RATIONALE_DIALOG_TITLE,
+                !rationaleDialogMessage.isEmpty() ? rationaleDialogMessage : DEFAULT_RATIONALE_DIALOG_MESSAGE,
+                enableBlockedDialog,
+                !blockedDialogTitle.isEmpty() ? blockedDialogTitle : DEFAULT_BLOCKED_DIALOG_TITLE,
+                !blockedDialogMessage.isEmpty() ? blockedDialogMessage : DEFAULT_BLOCKED_DIALOG_MESSAGE,
+                enableBackgroundDim, blockedCooldownMillis, 0));
     }
 
-    private void permissionsError(int requestCode, String errorMessage) {
-        if (permissionListener != null)
-            permissionListener.onPermissionsError(requestCode, errorMessage);
+    @SuppressWarnings("unused")
+    public void check() {
+        check(DEFAULT_REQUEST_CODE);
     }
 
-    private void requestPermissionInActivity(int requestCode, String... permissions) {
-        // Prepare setListener by storing into Permissions Activity
-        // Permission setListener can be null
-        PermissionsActivity.permissionListener = permissionListener;
-
-        Intent intent = new Intent(context, PermissionsActivity.class);
-
-        intent.putExtra(PermissionsActivity.EXTRA_PERMISSIONS, permissions);
-        intent.putExtra(PermissionsActivity.EXTRA_REQUEST_CODE, requestCode);
-
-        intent.putExtra(PermissionsActivity.EXTRA_ENABLE_RATIONALE_DIALOG, enableRationaleDialog);
-        intent.putExtra(PermissionsActivity.EXTRA_ENABLE_BLOCKED_DIALOG, enableBlockedDialog);
-
-        // Checks if title/message was added for the dialogs and uses the ones provided or default
-        if (!rationaleDialogTitle.isEmpty())
-            putExtraRationaleDialogTitle(intent, rationaleDialogTitle);
-        else
-            putExtraRationaleDialogTitle(intent, DEFAULT_RATIONALE_DIALOG_TITLE);
-
-        if (!rationaleDialogMessage.isEmpty())
-            putExtraRationaleDialogMessage(intent, rationaleDialogMessage);
-        else
-            putExtraRationaleDialogMessage(intent, DEFAULT_RATIONALE_DIALOG_MESSAGE);
-
-        if (!blockedDialogTitle.isEmpty())
-            putExtraBlockedDialogTitle(intent, blockedDialogTitle);
-        else
-            putExtraBlockedDialogTitle(intent, DEFAULT_BLOCKED_DIALOG_TITLE);
-
-        if (!blockedDialogMessage.isEmpty())
-            putExtraBlockedDialogMessage(intent, blockedDialogMessage);
-        else
-            putExtraBlockedDialogMessage(intent, DEFAULT_BLOCKED_DIALOG_MESSAGE);
+    /**
+     * Permission groups that are all granted are answered without building the request
+     * so repeated checks of granted groups don't allocate
+     */
+    @SuppressWarnings("unused")
+    public void check(int requestCode) {
+        PermissionTrace.beginSection("OrganizedPermissions.check");
 
-        intent.putExtra(PermissionsActivity.EXTRA_ENABLE_BACKGROUND_DIM, enableBackgroundDim);
+        try {
+            long checkStartNanos = PermissionMetrics.current() != null ? System.nanoTime() : 0;
+            int decision = PreparedPermissionRequest.decide(context, permissionGroups, requestCode, false);
 
-        // Start the permissions activity
-        context.startActivity(intent);
+            if (decision == PreparedPermissionRequest.DECISION_GRANTED) {
+                PreparedPermissionRequest.permissionsGranted(permissionListener, permissionGroups, requestCode,
+                        checkStartNanos);
+            } else {
+                build().dispatch(requestCode, decision, checkStartNanos);
+            }
+        } finally {
+            PermissionTrace.endSection();
+        }
     }
 
-    private void putExtraRationaleDialogTitle(Intent intent, String title) {
-        intent.putExtra(PermissionsActivity.EXTRA_RATIONALE_DIALOG_TITLE, title);
+    /**
+     * Same as check() but the manifest and grant state are looked at on the executor
+     * The listener is called on the main thread
+     */
+    @SuppressWarnings("unused")
+    public void checkAsync(Executor executor) {
+        build().checkAsync(DEFAULT_REQUEST_CODE, executor);
     }
 
-    private void putExtraRationaleDialogMessage(Intent intent, String message) {
-        intent.putExtra(PermissionsActivity.EXTRA_RATIONALE_DIALOG_MESSAGE, message);
+    @SuppressWarnings("unused")
+    public void checkAsync(int requestCode, Executor executor) {
+        build().checkAsync(requestCode, executor);
     }
 
-    private void putExtraBlockedDialogTitle(Intent intent, String title) {
-        intent.putExtra(PermissionsActivity.EXTRA_BLOCKED_DIALOG_TITLE, title);
+    /**
+     * Same as check() but the outcome is also given as a future so that checks can be chained and joined
+     * Callbacks added to the future without an executor run on the main thread
+     */
+    @SuppressWarnings("unused")
+    public PermissionFuture checkFuture() {
+        return build().checkFuture();
     }
 
-    private void putExtraBlockedDialogMessage(Intent intent, String message) {
-        intent.putExtra(PermissionsActivity.EXTRA_BLOCKED_DIALOG_MESSAGE, message);
+    @SuppressWarnings("unused")
+    public PermissionFuture checkFuture(int requestCode, Executor executor) {
+        return build().checkFuture(requestCode, executor);
     }
 }
@@ -0,0 +1,57 @@
+package com.coonrade.organizedpermissions;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Every call the library makes into the permission system, the package manager and the main thread
+ * FrameworkPermissionBackend talks to Android, tests swap in a simulated system through PermissionBackends
+ * Calls the flow makes through its host (requestPermissions and the rationale check) go through PermissionRequestFlow.Host
+ * but the flow's dialogs are shown through here
+ */
+interface PermissionBackend {
+
+    boolean isRuntimePermissionsEnabled();
+
+    /**
+     * @return permissions requested in the manifest, null if they could not be read
+     */
+    @Nullable
+    String[] getRequestedPermissions(@NonNull Context context);
+
+    int checkSelfPermission(@NonNull Context context, @NonNull String permission);
+
+    boolean shouldShowRequestPermissionRationale(@NonNull Activity activity, @NonNull String permission);
+
+    /**
+     * Runs the request inside the activity
+     * @return false if the activity can't take it, the request then goes to startActivityHost()
+     */
+    boolean startFragmentHost(@NonNull Activity activity, @NonNull PermissionRequest request);
+
+    /**
+     * Runs the request in its own activity
+     * @return false if the activity couldn't be started, the request is then given up on
+     */
+    boolean startActivityHost(@NonNull Context context, @NonNull PermissionRequest request);
+
+    /**
+     * Shows a dialog that can't be cancelled, only its buttons close it
+     * @return the dialog so that it can be dismissed when its host goes away
+     */
+    DialogInterface showDialog(@NonNull Activity activity, String title, String message,
+                               @NonNull String positiveButton, @NonNull DialogInterface.OnClickListener positiveListener,
+                               @NonNull String negativeButton, @NonNull DialogInterface.OnClickListener negativeListener);
+
+    boolean isMainThread();
+
+    void postToMainThread(@NonNull Runnable runnable, long delayMillis);
+
+    /**
+     * Runs the runnable on the main thread right before the next frame
+     */
+    void postFrameCallback(@NonNull Runnable runnable);
+}
@@ -0,0 +1,22 @@
+package com.coonrade.organizedpermissions;
+
+import android.support.annotation.VisibleForTesting;
+
+/**
+ * Holds the backend every system call goes through
+ */
+final class PermissionBackends {
+
+    private static volatile PermissionBackend backend = new FrameworkPermissionBackend();
+
+    private PermissionBackends() {}
+
+    static PermissionBackend get() {
+        return backend;
+    }
+
+    @VisibleForTesting
+    static void set(PermissionBackend permissionBackend) {
+        backend = permissionBackend;
+    }
+}
@@ -0,0 +1,373 @@
+package com.coonrade.organizedpermissions;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of a permission check that completes once the outcome for every permission group is known
+ * Checks can be chained with thenCheck(), joined with allOf() and given a timeout with withTimeout()
+ * Callbacks run on the executor passed to checkFuture() unless another one is given
+ *
+ * A check that is answered from memory completes right away, one that needs the user completes on the main thread
+ * so never block the main thread on get()
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PermissionFuture implements Future<PermissionResult> {
+
+    public abstract static class Callback {
+        public abstract void onResult(PermissionResult result);
+
+        /**
+         * Called instead of onResult() if the check failed (permissions missing in the manifest),
+         * timed out or was cancelled
+         */
+        public void onError(Throwable error) {}
+    }
+
+    private final Executor defaultExecutor;
+
+    // Request code of the check, chained checks use it unless they are given their own
+    private final int requestCode;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    // Guarded by this
+    private boolean completed, cancelled;
+    private PermissionResult result;
+    private Throwable error;
+    private final List<Runnable> pendingCallbacks = new ArrayList<>();
+
+    PermissionFuture(Executor defaultExecutor, int requestCode) {
+        this.defaultExecutor = defaultExecutor;
+        this.requestCode = requestCode;
+    }
+
+    /**
+     * Listener for the check that completes this future and forwards everything to the caller's listener
+     */
+    PermissionListener createListener(@Nullable final PermissionListener listener, final PermissionGroupSet permissionGroups) {
+        return new PermissionListener() {
+            @Override
+            public void onPermissionGroupsResult(int requestCode, PermissionResult result) {
+                if (listener != null) listener.onPermissionGroupsResult(requestCode, result);
+                complete(result, null);
+            }
+
+            @Override
+            public void onPermissionsGranted(int requestCode) {
+                if (listener != null) listener.onPermissionsGranted(requestCode);
+            }
+
+            @Override
+            public void onShowPermissionsRationale(int requestCode) {
+                if (listener != null) listener.onShowPermissionsRationale(requestCode);
+            }
+
+            @Override
+            public void onRationaleDialogDismissed(int requestCode) {
+                if (listener != null) listener.onRationaleDialogDismissed(requestCode);
+
+                // The system was never asked so nothing was granted
+                complete(new PermissionResult(0, permissionGroups.getMask(), 0), null);
+            }
+
+            @Override
+            public void onPermissionsDenied(int requestCode) {
+                if (listener != null) listener.onPermissionsDenied(requestCode);
+            }
+
+            @Override
+            public void onPermissionsBlocked(int requestCode) {
+                if (listener != null) listener.onPermissionsBlocked(requestCode);
+            }
+
+            @Override
+            public void onBlockedDialogDismissed(int requestCode) {
+                if (listener != null) listener.onBlockedDialogDismissed(requestCode);
+            }
+
+            @Override
+            public void onPermissionsError(int requestCode, String errorMessage) {
+                if (listener != null) listener.onPermissionsError(requestCode, errorMessage);
+                complete(null, new IllegalStateException(errorMessage));
+            }
+
+            @Override
+            public void onPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+                if (listener != null) listener.onPermissionsResult(requestCode, permissions, grantResults);
+            }
+        };
+    }
+
+    /**
+     * @return false if the future was already completed
+     */
+    boolean complete(@Nullable PermissionResult result, @Nullable Throwable error) {
+        return complete(result, error, false);
+    }
+
+    /**
+     * Cancelled is set together with completed so that isCancelled() always agrees with get()
+     */
+    private boolean complete(@Nullable PermissionResult result, @Nullable Throwable error, boolean cancel) {
+        List<Runnable> callbacks;
+
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+
+            completed = true;
+            cancelled = cancel;
+            this.result = result;
+            this.error = error;
+
+            callbacks = new ArrayList<>(pendingCallbacks);
+            pendingCallbacks.clear();
+        }
+
+        done.countDown();
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+
+        return true;
+    }
+
+    @SuppressWarnings("unused")
+    public void addCallback(Callback callback) {
+        addCallback(callback, defaultExecutor);
+    }
+
+    @SuppressWarnings("unused")
+    public void addCallback(final Callback callback, final Executor executor) {
+        Runnable runCallback = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        PermissionResult result;
+                        Throwable error;
+
+                        synchronized (PermissionFuture.this) {
+                            result = PermissionFuture.this.result;
+                            error = PermissionFuture.this.error;
+                        }
+
+                        if (error != null) {
+                            callback.onError(error);
+                        } else {
+                            callback.onResult(result);
+                        }
+                    }
+                });
+            }
+        };
+
+        synchronized (this) {
+            if (!completed) {
+                pendingCallbacks.add(runCallback);
+                return;
+            }
+        }
+
+        runCallback.run();
+    }
+
+    /**
+     * Runs the next check once this one is over, but only if every permission group of this one was granted
+     * The returned future completes with the results of both checks merged together
+     * or with the result of this one if something was not granted
+     * The next check gets the request code of this one
+     */
+    @SuppressWarnings("unused")
+    public PermissionFuture thenCheck(PreparedPermissionRequest next) {
+        return thenCheck(next, requestCode);
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionFuture thenCheck(final PreparedPermissionRequest next, final int nextRequestCode) {
+        final PermissionFuture chained = new PermissionFuture(defaultExecutor, nextRequestCode);
+
+        addCallback(new Callback() {
+            @Override
+            public void onResult(final PermissionResult result) {
+                if (!result.areAllGranted()) {
+                    chained.complete(result, null);
+                    return;
+                }
+
+                next.checkFuture(nextRequestCode, defaultExecutor).addCallback(new Callback() {
+                    @Override
+                    public void onResult(PermissionResult nextResult) {
+                        chained.complete(PermissionResult.merge(result, nextResult), null);
+                    }
+
+                    @Override
+                    public void onError(Throwable error) {
+                        chained.complete(null, error);
+                    }
+                }, DirectExecutor.INSTANCE);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                chained.complete(null, error);
+            }
+        }, DirectExecutor.INSTANCE);
+
+        return chained;
+    }
+
+    /**
+     * Completes once every future completed, with all of their results merged together
+     * Fails as soon as one of them fails
+     */
+    @SuppressWarnings("unused")
+    public static PermissionFuture allOf(Executor executor, final PermissionFuture... futures) {
+        // The joined checks each have their own request code, the joined future has none of its own
+        final PermissionFuture joined = new PermissionFuture(executor, 0);
+
+        if (futures.length == 0) {
+            joined.complete(new PermissionResult(0, 0, 0), null);
+            return joined;
+        }
+
+        final PermissionResult[] results = new PermissionResult[futures.length];
+        final int[] remaining = {futures.length};
+
+        for (int i = 0; i < futures.length; i++) {
+            final int index = i;
+
+            futures[i].addCallback(new Callback() {
+                @Override
+                public void onResult(PermissionResult result) {
+                    PermissionResult merged = null;
+
+                    synchronized (results) {
+                        results[index] = result;
+
+                        if (--remaining[0] == 0) {
+                            merged = results[0];
+                            for (int j = 1; j < results.length; j++) {
+                                merged = PermissionResult.merge(merged, results[j]);
+                            }
+                        }
+                    }
+
+                    if (merged != null) {
+                        joined.complete(merged, null);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    joined.complete(null, error);
+                }
+            }, DirectExecutor.INSTANCE);
+        }
+
+        return joined;
+    }
+
+    /**
+     * Fails with a TimeoutException if this future doesn't complete in time
+     * The request itself keeps going, only the returned future gives up on it
+     */
+    @SuppressWarnings("unused")
+    public PermissionFuture withTimeout(long timeout, TimeUnit unit) {
+        final PermissionFuture timed = new PermissionFuture(defaultExecutor, requestCode);
+
+        addCallback(new Callback() {
+            @Override
+            public void onResult(PermissionResult result) {
+                timed.complete(result, null);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                timed.complete(null, error);
+            }
+        }, DirectExecutor.INSTANCE);
+
+        MainThreadExecutor.INSTANCE.executeDelayed(new Runnable() {
+            @Override
+            public void run() {
+                timed.complete(null, new TimeoutException("Permission check timed out"));
+            }
+        }, unit.toMillis(timeout));
+
+        return timed;
+    }
+
+    /**
+     * Stops waiting for the result, the request itself keeps going
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, new CancellationException(), true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    @Override
+    public PermissionResult get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    @Override
+    public PermissionResult get(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Permission check timed out");
+        }
+
+        return getResult();
+    }
+
+    private synchronized PermissionResult getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+
+        return result;
+    }
+
+    /**
+     * Runs callbacks right away on the thread that completed the future
+     * Only used between futures, user callbacks always go through their executor
+     */
+    private static final class DirectExecutor implements Executor {
+        static final DirectExecutor INSTANCE = new DirectExecutor();
+
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            runnable.run();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.coonrade.organizedpermissions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One time index of which permission groups have at least one permission in the manifest
+ * Each permission group is stored as a bit (1 << group) so checking several groups at once
+ * is a single bitmask test instead of comparing strings against the whole manifest
+ */
+final class PermissionGroupIndex {
+
+    // Number of constants in PermissionGroup
+    static final int GROUP_COUNT = 9;
+
+    // Bit is set if the permission group has at least one permission in the manifest
+    private final int manifestMask;
+
+    // Permissions of each group that were actually found in the manifest (in PermissionList order)
+    private final String[][] manifestPermissionsByGroup;
+
+    private PermissionGroupIndex(int manifestMask, String[][] manifestPermissionsByGroup) {
+        this.manifestMask = manifestMask;
+        this.manifestPermissionsByGroup = manifestPermissionsByGroup;
+    }
+
+    static PermissionGroupIndex build(String[] manifestPermissions) {
+        Set<String> manifest = new HashSet<>(Arrays.asList(manifestPermissions));
+
+        int manifestMask = 0;
+        String[][] manifestPermissionsByGroup = new String[GROUP_COUNT][];
+
+        for (int permissionGroup = 0; permissionGroup < GROUP_COUNT; permissionGroup++) {
+            List<String> found = new ArrayList<>();
+
+            for (String permission : PermissionUtil.getPermissionsFromGroup(permissionGroup)) {
+                if (manifest.contains(permission)) {
+                    found.add(permission);
+                }
+            }
+
+            if (!found.isEmpty()) {
+                manifestMask |= 1 << permissionGroup;
+            }
+
+            manifestPermissionsByGroup[permissionGroup] = found.toArray(new String[found.size()]);
+        }
+
+        return new PermissionGroupIndex(manifestMask, manifestPermissionsByGroup);
+    }
+
+    /**
+     * @return true if every group in the mask has at least one permission in the manifest
+     */
+    boolean areInManifest(int permissionGroupMask) {
+        return (manifestMask & permissionGroupMask) == permissionGroupMask;
+    }
+
+    boolean isInManifest(@PermissionGroup int permissionGroup) {
+        return (manifestMask & (1 << permissionGroup)) != 0;
+    }
+
+    /**
+     * Permissions from the group that are declared in the manifest
+     * The returned array is shared and must not be modified
+     */
+    String[] getManifestPermissions(@PermissionGroup int permissionGroup) {
+        return manifestPermissionsByGroup[permissionGroup];
+    }
+
+    int getManifestMask() {
+        return manifestMask;
+    }
+}
@@ -0,0 +1,134 @@
+package com.coonrade.organizedpermissions;
+
+/**
+ * Immutable set of permission groups backed by an int bitmask (1 << group)
+ * Every possible set is created once up front so building or combining sets never allocates
+ * Passing the same permission group more than once has no effect
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PermissionGroupSet {
+
+    private static final int ALL_MASK = (1 << PermissionGroupIndex.GROUP_COUNT) - 1;
+
+    private static final PermissionGroupSet[] SETS = new PermissionGroupSet[ALL_MASK + 1];
+
+    static {
+        for (int mask = 0; mask <= ALL_MASK; mask++) {
+            SETS[mask] = new PermissionGroupSet(mask);
+        }
+    }
+
+    private static final String[] GROUP_NAMES = {"CALENDAR", "CAMERA", "CONTACTS", "LOCATION",
+            "MICROPHONE", "PHONE", "SENSORS", "SMS", "STORAGE"};
+
+    private final int mask;
+
+    // Permissions passed to the OS for this set, formatted the first time they are needed
+    // Racing threads would only format the same values, volatile makes sure nobody sees the array before its elements
+    private volatile String[] permissions;
+
+    private PermissionGroupSet(int mask) {
+        this.mask = mask;
+    }
+
+    @SuppressWarnings("unused")
+    public static PermissionGroupSet of(@PermissionGroup int permissionGroup, @PermissionGroup int... permissionGroups) {
+        int mask = 1 << permissionGroup;
+
+        for (int permissionGroupFromArray : permissionGroups) {
+            mask |= 1 << permissionGroupFromArray;
+        }
+
+        return fromMask(mask);
+    }
+
+    @SuppressWarnings("unused")
+    public static PermissionGroupSet empty() {
+        return SETS[0];
+    }
+
+    @SuppressWarnings("unused")
+    public static PermissionGroupSet all() {
+        return SETS[ALL_MASK];
+    }
+
+    static PermissionGroupSet fromMask(int mask) {
+        return SETS[mask & ALL_MASK];
+    }
+
+    int getMask() {
+        return mask;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean contains(@PermissionGroup int permissionGroup) {
+        return (mask & (1 << permissionGroup)) != 0;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean containsAll(PermissionGroupSet permissionGroups) {
+        return (mask & permissionGroups.mask) == permissionGroups.mask;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean isEmpty() {
+        return mask == 0;
+    }
+
+    @SuppressWarnings("unused")
+    public int size() {
+        return Integer.bitCount(mask);
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionGroupSet union(PermissionGroupSet permissionGroups) {
+        return fromMask(mask | permissionGroups.mask);
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionGroupSet intersect(PermissionGroupSet permissionGroups) {
+        return fromMask(mask & permissionGroups.mask);
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionGroupSet minus(PermissionGroupSet permissionGroups) {
+        return fromMask(mask & ~permissionGroups.mask);
+    }
+
+    /**
+     * One permission per group in ascending group order, ready to be passed to the OS
+     * The returned array is shared and must not be modified
+     */
+    String[] getPermissions() {
+        String[] formattedPermissions = permissions;
+
+        if (formattedPermissions == null) {
+            formattedPermissions = PermissionUtil.formatPermissionGroups(mask);
+            permissions = formattedPermissions;
+        }
+
+        return formattedPermissions;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof PermissionGroupSet && ((PermissionGroupSet) o).mask == mask);
+    }
+
+    @Override
+    public int hashCode() {
+        return mask;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("PermissionGroupSet[");
+
+        for (int remaining = mask; remaining != 0; remaining &= remaining - 1) {
+            builder.append(GROUP_NAMES[Integer.numberOfTrailingZeros(remaining)]);
+            if ((remaining & (remaining - 1)) != 0) builder.append(", ");
+        }
+
+        return builder.append(']').toString();
+    }
+}
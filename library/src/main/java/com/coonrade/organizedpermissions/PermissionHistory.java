@@ -0,0 +1,252 @@
+package com.coonrade.organizedpermissions;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persisted history of which permission groups were requested and which were blocked the last time they were
+ * Without it a blocked group looks the same as a group that was never asked for
+ * until the system request is made, which needs an activity
+ *
+ * Blocked groups are forgotten as soon as they are seen granted,
+ * clearing the app's data forgets everything which is fine as the system forgets the blocked state too
+ * The user can also reset a permission to "ask" in the settings app without the app finding out,
+ * so each blocked group is only trusted for a while after it was blocked
+ * and forgotten when the blocked dialog sends the user there
+ */
+final class PermissionHistory {
+
+    static final String PREFERENCES_NAME = "organized_permissions_history";
+    private static final String KEY_REQUESTED = "requested";
+    private static final String KEY_BLOCKED = "blocked";
+    // Followed by the permission group
+    private static final String KEY_BLOCKED_TIME_PREFIX = "blocked_time_";
+
+    // After this long blocked groups are asked for again with a real request
+    static final long BLOCKED_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final Object LOCK = new Object();
+
+    // Loaded once, every change after that is written back right away
+    @Nullable
+    private static volatile SharedPreferences preferences;
+    private static volatile int requestedGroupMask;
+    private static volatile int blockedGroupMask;
+
+    // Wall clock time of when each permission group was blocked, 0 if it isn't, it has to survive reboots
+    // Replaced instead of changed so that readers never see it half updated
+    private static volatile long[] blockedTimesMillis = new long[PermissionGroupIndex.GROUP_COUNT];
+
+    private PermissionHistory() {}
+
+    /**
+     * Reads the history the first time it is called, the first call needs disk access
+     */
+    static void load(Context context) {
+        if (preferences != null) {
+            return;
+        }
+
+        synchronized (LOCK) {
+            if (preferences != null) {
+                return;
+            }
+
+            SharedPreferences loaded = context.getApplicationContext()
+                    .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+            requestedGroupMask = loaded.getInt(KEY_REQUESTED, 0);
+
+            // Groups could have been granted from the settings app since the history was written
+            blockedGroupMask = loaded.getInt(KEY_BLOCKED, 0) & ~GrantStateCache.getGrantedMask();
+
+            long[] loadedTimes = new long[PermissionGroupIndex.GROUP_COUNT];
+            for (int remaining = blockedGroupMask; remaining != 0; remaining &= remaining - 1) {
+                int permissionGroup = Integer.numberOfTrailingZeros(remaining);
+                loadedTimes[permissionGroup] = loaded.getLong(getBlockedTimeKey(permissionGroup), 0);
+            }
+            blockedTimesMillis = loadedTimes;
+
+            preferences = loaded;
+        }
+    }
+
+    /**
+     * @return permission groups that were requested at least once
+     */
+    static int getRequestedMask(Context context) {
+        load(context);
+        return requestedGroupMask;
+    }
+
+    /**
+     * @return permission groups that were blocked (denied with "never ask again") the last time they were requested
+     */
+    static int getBlockedMask(Context context) {
+        load(context);
+        return getTrustedBlockedMask();
+    }
+
+    /**
+     * Blocked groups of the mask that are still blocked as far as can be told without a system request
+     * A stored group could have been granted or reset to "ask" in the settings app since,
+     * so the grant state of the mask is asked from the system and, when the context is an activity,
+     * the rationale too as the system only shows one for groups it would ask about again
+     * Groups that turned out not to be blocked are forgotten
+     * @param metrics counts the grant state and rationale checks for the request code if given
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    static int revalidateBlockedMask(Context context, int permissionGroupMask,
+                                     @Nullable PermissionMetrics metrics, int requestCode) {
+        int blocked = getBlockedMask(context) & permissionGroupMask;
+
+        if (blocked == 0) {
+            return 0;
+        }
+
+        // Groups seen granted are forgotten by GrantStateCache.update()
+        GrantStateCache.refresh(context, permissionGroupMask, metrics, requestCode);
+        blocked &= ~GrantStateCache.getGrantedMask();
+
+        if (context instanceof Activity) {
+            Activity activity = (Activity) context;
+            int askableGroupMask = 0;
+
+            for (int remaining = blocked; remaining != 0; remaining &= remaining - 1) {
+                int permissionGroup = Integer.numberOfTrailingZeros(remaining);
+
+                if (metrics != null) {
+                    metrics.increment(requestCode, PermissionMetrics.COUNTER_RATIONALE_CALLS);
+                }
+
+                if (PermissionBackends.get().shouldShowRequestPermissionRationale(activity,
+                        PermissionUtil.getPermissionFromGroup(permissionGroup))) {
+                    askableGroupMask |= 1 << permissionGroup;
+                }
+            }
+
+            clearBlocked(askableGroupMask);
+            blocked &= ~askableGroupMask;
+        }
+
+        return blocked;
+    }
+
+    /**
+     * Stores the outcome of a system request
+     * Groups that are blocked now get the current time, groups that stay blocked keep theirs
+     */
+    static void onRequestResult(Context context, PermissionResult result) {
+        load(context);
+
+        synchronized (LOCK) {
+            int askedGroupMask = result.getGrantedMask() | result.getDeniedMask();
+            int blocked = (getTrustedBlockedMask() | result.getBlockedMask()) & ~askedGroupMask;
+
+            long[] times = blockedTimesMillis.clone();
+            long now = System.currentTimeMillis();
+
+            for (int remaining = result.getBlockedMask(); remaining != 0; remaining &= remaining - 1) {
+                times[Integer.numberOfTrailingZeros(remaining)] = now;
+            }
+
+            store(requestedGroupMask | askedGroupMask | result.getBlockedMask(), blocked, times);
+        }
+    }
+
+    /**
+     * Forgets permission groups that turned out not to be blocked anymore
+     * Only touches a history that was already loaded, a history loaded later is checked against the grant cache
+     */
+    static void clearBlocked(int permissionGroupMask) {
+        if (preferences == null || (blockedGroupMask & permissionGroupMask) == 0) {
+            return;
+        }
+
+        synchronized (LOCK) {
+            store(requestedGroupMask, blockedGroupMask & ~permissionGroupMask, blockedTimesMillis);
+        }
+    }
+
+    /**
+     * Blocked groups that are too old to skip the system request for, or whose clock went back, count as unknown
+     * Each group is judged by the time it was blocked itself
+     */
+    private static int getTrustedBlockedMask() {
+        int blocked = blockedGroupMask;
+        long[] times = blockedTimesMillis;
+        long now = System.currentTimeMillis();
+
+        for (int remaining = blocked; remaining != 0; remaining &= remaining - 1) {
+            int permissionGroup = Integer.numberOfTrailingZeros(remaining);
+            long age = now - times[permissionGroup];
+
+            if (age < 0 || age >= BLOCKED_MAX_AGE_MILLIS) {
+                blocked &= ~(1 << permissionGroup);
+            }
+        }
+
+        return blocked;
+    }
+
+    @VisibleForTesting
+    static String getBlockedTimeKey(@PermissionGroup int permissionGroup) {
+        return KEY_BLOCKED_TIME_PREFIX + permissionGroup;
+    }
+
+    /**
+     * Forgets what was loaded so that the next call reads the history again, like a new process would
+     */
+    @VisibleForTesting
+    static void reset() {
+        synchronized (LOCK) {
+            preferences = null;
+            requestedGroupMask = 0;
+            blockedGroupMask = 0;
+            blockedTimesMillis = new long[PermissionGroupIndex.GROUP_COUNT];
+        }
+    }
+
+    /**
+     * Only blocked groups keep a time, the others are removed
+     */
+    private static void store(int requested, int blocked, long[] blockedTimes) {
+        long[] times = new long[PermissionGroupIndex.GROUP_COUNT];
+
+        for (int remaining = blocked; remaining != 0; remaining &= remaining - 1) {
+            int permissionGroup = Integer.numberOfTrailingZeros(remaining);
+            times[permissionGroup] = blockedTimes[permissionGroup];
+        }
+
+        if (requested == requestedGroupMask && blocked == blockedGroupMask && Arrays.equals(times, blockedTimesMillis)) {
+            return;
+        }
+
+        requestedGroupMask = requested;
+        blockedGroupMask = blocked;
+        blockedTimesMillis = times;
+
+        //noinspection ConstantConditions loaded before anything is stored
+        SharedPreferences.Editor editor = preferences.edit()
+                .putInt(KEY_REQUESTED, requested)
+                .putInt(KEY_BLOCKED, blocked);
+
+        for (int permissionGroup = 0; permissionGroup < times.length; permissionGroup++) {
+            if (times[permissionGroup] != 0) {
+                editor.putLong(getBlockedTimeKey(permissionGroup), times[permissionGroup]);
+            } else {
+                editor.remove(getBlockedTimeKey(permissionGroup));
+            }
+        }
+
+        editor.apply();
+    }
+}
@@ -0,0 +1,233 @@
+package com.coonrade.organizedpermissions;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opt-in journal of what happened during checks and requests, for support cases
+ * Keeps the last events in a fixed size ring buffer of longs that is written without locks
+ * dump() writes it to a file that PermissionJournalReader decodes on any JVM
+ *
+ * An event is four longs: sequence number, elapsed realtime, type/argument/request code and permission group masks
+ * The sequence number is written last so that dump() can skip events that were being written or overwritten
+ * Writers a full lap apart land on the same slot, a writer claims the slot first and gives up on its event
+ * if another one holds it or already wrote a newer event there, so events are lost instead of mixed up
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PermissionJournal {
+
+    // Event types
+    // check() was called for the requested groups
+    public static final int EVENT_CHECK = 1;
+    // A host was started for the request, argument is HOST_ACTIVITY or HOST_FRAGMENT
+    public static final int EVENT_HOST_STARTED = 2;
+    public static final int EVENT_FLOW_STARTED = 3;
+    public static final int EVENT_RATIONALE_SHOWN = 4;
+    public static final int EVENT_RATIONALE_ACCEPTED = 5;
+    public static final int EVENT_RATIONALE_DISMISSED = 6;
+    public static final int EVENT_SYSTEM_REQUEST = 7;
+    public static final int EVENT_BLOCKED_DIALOG_SHOWN = 8;
+    public static final int EVENT_BLOCKED_DIALOG_SETTINGS = 9;
+    public static final int EVENT_BLOCKED_DIALOG_DISMISSED = 10;
+    // The host went away before the user answered
+    public static final int EVENT_INTERRUPTED = 11;
+    // Outcomes handed to the listener, with the granted, denied and blocked groups
+    public static final int EVENT_GRANTED = 12;
+    public static final int EVENT_DENIED = 13;
+    public static final int EVENT_BLOCKED = 14;
+    public static final int EVENT_ERROR = 15;
+    // PermissionsActivity came back after the process was restarted, the request it was started for is gone
+    // Also recorded when a host starts after its request was given up on
+    public static final int EVENT_HOST_LOST = 16;
+    // The host didn't start the flow in time, the request is given up on and counts as interrupted
+    public static final int EVENT_HOST_TIMED_OUT = 17;
+
+    public static final int HOST_ACTIVITY = 0;
+    public static final int HOST_FRAGMENT = 1;
+
+    // File format, see PermissionJournalReader
+    static final int FILE_MAGIC = 0x4F504A4E;
+    static final int FILE_VERSION = 1;
+
+    // Layout of an event in the ring buffer
+    static final int EVENT_SIZE = 4;
+    private static final int SEQUENCE_OFFSET = 0;
+    private static final int TIME_OFFSET = 1;
+    private static final int HEAD_OFFSET = 2;
+    private static final int MASKS_OFFSET = 3;
+
+    // Sequence stamp of a slot that a writer claimed, never the stamp of an event
+    private static final long STAMP_WRITING = -1;
+
+    // Group masks are packed 9 bits each: requested, granted, denied, blocked
+    static final int MASK_BITS = 9;
+    static final long MASK = (1 << MASK_BITS) - 1;
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    @Nullable
+    private static volatile PermissionJournal current;
+
+    private final int capacity;
+    private final AtomicLongArray events;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    private PermissionJournal(int capacity) {
+        this.capacity = capacity;
+        events = new AtomicLongArray(capacity * EVENT_SIZE);
+    }
+
+    @SuppressWarnings("unused")
+    public static void enable() {
+        enable(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Starts recording the last capacity events, each takes 32 bytes
+     * Events recorded before are kept unless the capacity changes
+     */
+    @SuppressWarnings("unused")
+    public static synchronized void enable(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity has to be positive");
+        }
+
+        if (current == null || current.capacity != capacity) {
+            current = new PermissionJournal(capacity);
+        }
+    }
+
+    /**
+     * Stops recording and drops the recorded events
+     */
+    @SuppressWarnings("unused")
+    public static synchronized void disable() {
+        current = null;
+    }
+
+    @SuppressWarnings("unused")
+    public static boolean isEnabled() {
+        return current != null;
+    }
+
+    /**
+     * Writes the recorded events, oldest first, recording goes on while the file is written
+     * Does disk access so it shouldn't be called on the main thread
+     * @return false if recording is turned off or the file couldn't be written
+     */
+    @SuppressWarnings("unused")
+    public static boolean dump(File file) {
+        PermissionJournal journal = current;
+
+        if (journal == null) {
+            return false;
+        }
+
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+            try {
+                journal.writeTo(output);
+            } finally {
+                output.close();
+            }
+
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the journal to record into, null if recording is turned off
+     */
+    @Nullable
+    static PermissionJournal current() {
+        return current;
+    }
+
+    void record(int event, int requestCode, int requestedGroupMask) {
+        record(event, 0, requestCode, requestedGroupMask, 0, 0, 0);
+    }
+
+    void record(int event, int requestCode, int requestedGroupMask, PermissionResult result) {
+        record(event, 0, requestCode, requestedGroupMask,
+                result.getGrantedMask(), result.getDeniedMask(), result.getBlockedMask());
+    }
+
+    void record(int event, int argument, int requestCode, int requestedGroupMask,
+                int grantedGroupMask, int deniedGroupMask, int blockedGroupMask) {
+        long sequence = nextSequence.getAndIncrement();
+        int index = (int) (sequence % capacity) * EVENT_SIZE;
+
+        // Readers skip the event until its sequence number is back
+        long stamp;
+        do {
+            stamp = events.get(index + SEQUENCE_OFFSET);
+
+            if (stamp == STAMP_WRITING || stamp > sequence) {
+                return;
+            }
+        } while (!events.compareAndSet(index + SEQUENCE_OFFSET, stamp, STAMP_WRITING));
+
+        events.set(index + TIME_OFFSET, SystemClock.elapsedRealtimeNanos());
+        events.set(index + HEAD_OFFSET, ((long) event << 48) | ((long) (argument & 0xFFFF) << 32)
+                | (requestCode & 0xFFFFFFFFL));
+        events.set(index + MASKS_OFFSET, (requestedGroupMask & MASK)
+                | (grantedGroupMask & MASK) << MASK_BITS
+                | (deniedGroupMask & MASK) << 2 * MASK_BITS
+                | (blockedGroupMask & MASK) << 3 * MASK_BITS);
+        events.set(index + SEQUENCE_OFFSET, sequence + 1);
+    }
+
+    private void writeTo(DataOutputStream output) throws IOException {
+        long end = nextSequence.get();
+        long start = Math.max(0, end - capacity);
+
+        // Copy first so that the header can say how many events made it
+        long[] copy = new long[(int) (end - start) * EVENT_SIZE];
+        int count = 0;
+
+        for (long sequence = start; sequence < end; sequence++) {
+            int index = (int) (sequence % capacity) * EVENT_SIZE;
+
+            long before = events.get(index + SEQUENCE_OFFSET);
+            long time = events.get(index + TIME_OFFSET);
+            long head = events.get(index + HEAD_OFFSET);
+            long masks = events.get(index + MASKS_OFFSET);
+
+            // Still being written or already overwritten by a newer event
+            if (before != sequence + 1 || events.get(index + SEQUENCE_OFFSET) != before) {
+                continue;
+            }
+
+            copy[count * EVENT_SIZE + SEQUENCE_OFFSET] = sequence;
+            copy[count * EVENT_SIZE + TIME_OFFSET] = time;
+            copy[count * EVENT_SIZE + HEAD_OFFSET] = head;
+            copy[count * EVENT_SIZE + MASKS_OFFSET] = masks;
+            count++;
+        }
+
+        output.writeInt(FILE_MAGIC);
+        output.writeInt(FILE_VERSION);
+
+        // Lets the reader turn elapsed realtime into wall clock time
+        output.writeLong(SystemClock.elapsedRealtimeNanos());
+        output.writeLong(System.currentTimeMillis());
+
+        output.writeInt(count);
+        for (int i = 0; i < count * EVENT_SIZE; i++) {
+            output.writeLong(copy[i]);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.coonrade.organizedpermissions;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decodes files written by PermissionJournal.dump(), runs on any JVM without Android classes
+ * java -cp organizedpermissions.jar com.coonrade.organizedpermissions.PermissionJournalReader journal.bin
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PermissionJournalReader {
+
+    private static final String[] EVENT_NAMES = {"UNKNOWN", "CHECK", "HOST_STARTED", "FLOW_STARTED",
+            "RATIONALE_SHOWN", "RATIONALE_ACCEPTED", "RATIONALE_DISMISSED", "SYSTEM_REQUEST",
+            "BLOCKED_DIALOG_SHOWN", "BLOCKED_DIALOG_SETTINGS", "BLOCKED_DIALOG_DISMISSED", "INTERRUPTED",
+            "GRANTED", "DENIED", "BLOCKED", "ERROR", "HOST_LOST", "HOST_TIMED_OUT"};
+
+    private PermissionJournalReader() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: PermissionJournalReader <journal file>");
+            System.exit(1);
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+
+        // Time since the previous event of the same request code, that is how long the step took
+        Map<Integer, Long> previousNanos = new HashMap<>();
+
+        for (Event event : read(new FileInputStream(args[0]))) {
+            Long previous = previousNanos.put(event.getRequestCode(), event.getElapsedRealtimeNanos());
+            String step = previous != null
+                    ? String.format(Locale.US, "+%9.1fms", (event.getElapsedRealtimeNanos() - previous) / 1e6) : "           ";
+
+            System.out.println(format.format(new Date(event.getWallTimeMillis())) + " " + step + " " + event);
+        }
+    }
+
+    /**
+     * Reads every event of a dump, oldest first, and closes the stream
+     * @throws IOException if the stream isn't a journal dump this version can read
+     */
+    public static List<Event> read(InputStream stream) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(stream));
+
+        try {
+            if (input.readInt() != PermissionJournal.FILE_MAGIC) {
+                throw new IOException("Not a permission journal");
+            }
+
+            int version = input.readInt();
+            if (version != PermissionJournal.FILE_VERSION) {
+                throw new IOException("Unsupported permission journal version " + version);
+            }
+
+            long dumpElapsedRealtimeNanos = input.readLong();
+            long dumpWallTimeMillis = input.readLong();
+            int count = input.readInt();
+
+            List<Event> events = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long sequence = input.readLong();
+                long elapsedRealtimeNanos = input.readLong();
+                long head = input.readLong();
+                long masks = input.readLong();
+
+                events.add(new Event(sequence, elapsedRealtimeNanos,
+                        dumpWallTimeMillis - (dumpElapsedRealtimeNanos - elapsedRealtimeNanos) / 1000000, head, masks));
+            }
+
+            return Collections.unmodifiableList(events);
+        } finally {
+            input.close();
+        }
+    }
+
+    public static String getEventName(int event) {
+        return event > 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event] : EVENT_NAMES[0];
+    }
+
+    /**
+     * One decoded event, the event types are PermissionJournal.EVENT_*
+     */
+    public static final class Event {
+        private final long sequence, elapsedRealtimeNanos, wallTimeMillis;
+        private final int type, argument, requestCode;
+        private final int requestedMask, grantedMask, deniedMask, blockedMask;
+
+        Event(long sequence, long elapsedRealtimeNanos, long wallTimeMillis, long head, long masks) {
+            this.sequence = sequence;
+            this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+            this.wallTimeMillis = wallTimeMillis;
+
+            type = (int) (head >>> 48);
+            argument = (int) (head >>> 32) & 0xFFFF;
+            requestCode = (int) head;
+
+            requestedMask = (int) (masks & PermissionJournal.MASK);
+            grantedMask = (int) (masks >>> PermissionJournal.MASK_BITS & PermissionJournal.MASK);
+            deniedMask = (int) (masks >>> 2 * PermissionJournal.MASK_BITS & PermissionJournal.MASK);
+            blockedMask = (int) (masks >>> 3 * PermissionJournal.MASK_BITS & PermissionJournal.MASK);
+        }
+
+        /**
+         * Gaps in the sequence numbers are events that were overwritten or still being written during the dump
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getElapsedRealtimeNanos() {
+            return elapsedRealtimeNanos;
+        }
+
+        public long getWallTimeMillis() {
+            return wallTimeMillis;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * PermissionJournal.HOST_ACTIVITY or HOST_FRAGMENT for EVENT_HOST_STARTED, 0 otherwise
+         */
+        public int getArgument() {
+            return argument;
+        }
+
+        public int getRequestCode() {
+            return requestCode;
+        }
+
+        public PermissionGroupSet getRequested() {
+            return PermissionGroupSet.fromMask(requestedMask);
+        }
+
+        // Granted, denied and blocked are only set for outcome events
+
+        public PermissionGroupSet getGranted() {
+            return PermissionGroupSet.fromMask(grantedMask);
+        }
+
+        public PermissionGroupSet getDenied() {
+            return PermissionGroupSet.fromMask(deniedMask);
+        }
+
+        public PermissionGroupSet getBlocked() {
+            return PermissionGroupSet.fromMask(blockedMask);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder()
+                    .append('#').append(sequence)
+                    .append(" requestCode=").append(requestCode)
+                    .append(' ').append(getEventName(type));
+
+            if (type == PermissionJournal.EVENT_HOST_STARTED) {
+                builder.append(argument == PermissionJournal.HOST_FRAGMENT ? " fragment" : " activity");
+            }
+
+            builder.append(" requested=").append(getRequested());
+
+            if ((grantedMask | deniedMask | blockedMask) != 0) {
+                builder.append(" granted=").append(getGranted())
+                        .append(" denied=").append(getDenied())
+                        .append(" blocked=").append(getBlocked());
+            }
+
+            return builder.toString();
+        }
+    }
+}
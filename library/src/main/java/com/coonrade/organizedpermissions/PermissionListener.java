@@ -14,4 +14,26 @@ public abstract class PermissionListener {
     public void onBlockedDialogDismissed(int requestCode){}
 
     public void onPermissionsError(int requestCode, String errorMessage) {}
+
+    /**
+     * Called with the raw result of the system request, before granted/denied/blocked
+     * Permissions are the ones that were passed to the system, one per permission group
+     * grantResults is empty if the request was interrupted
+     */
+    public void onPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {}
+
+    /**
+     * Called right before onPermissionsGranted(), onPermissionsDenied() or onPermissionsBlocked()
+     * with the outcome of every requested permission group
+     * Use this instead of checking permissions again to find out which of the groups were granted
+     */
+    public void onPermissionGroupsResult(int requestCode, PermissionResult result) {}
+
+    // Hooks for PermissionMetrics and PermissionJournal, only the library's own listeners can see them
+
+    void onSystemRequestStarted(int requestCode) {}
+
+    void onRationaleChecked(int requestCode) {}
+
+    void onFlowEvent(int requestCode, int event) {}
 }
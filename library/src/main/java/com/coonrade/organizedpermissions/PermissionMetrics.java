@@ -0,0 +1,270 @@
+package com.coonrade.organizedpermissions;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opt-in counters and timings of checks and requests, kept for each request code
+ * Meant to be exported into the app's own telemetry with snapshot()
+ *
+ * Everything is stored in fixed size arrays that are updated without locks
+ * When turned off the only cost is reading one volatile field
+ * Only the first MAX_REQUEST_CODES request codes get their own metrics, the rest are added up under an overflow entry
+ * Timings are kept as histograms with power of two buckets in microseconds
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PermissionMetrics {
+
+    // Counters
+    public static final int COUNTER_CHECKS = 0;
+    public static final int COUNTER_CHECK_SELF_PERMISSION_CALLS = 1;
+    public static final int COUNTER_RATIONALE_CALLS = 2;
+    public static final int COUNTER_ACTIVITY_STARTS = 3;
+    public static final int COUNTER_FRAGMENT_STARTS = 4;
+    public static final int COUNTER_GRANTED = 5;
+    public static final int COUNTER_DENIED = 6;
+    public static final int COUNTER_BLOCKED = 7;
+    public static final int COUNTER_ERROR = 8;
+    private static final int COUNTER_COUNT = 9;
+
+    // Timers
+    // Reading the manifest, only the first check of a prepared request looks at it
+    public static final int TIMER_MANIFEST_LOOKUP = 0;
+    // Grant state check, answered from memory once the state of the groups is known
+    public static final int TIMER_GRANT_CHECK = 1;
+    // From starting PermissionsActivity or the headless fragment to asking the system
+    public static final int TIMER_HOST_TO_SYSTEM_REQUEST = 2;
+    // From check() to the outcome callback of the listener, includes the time the user took
+    public static final int TIMER_DECISION = 3;
+    private static final int TIMER_COUNT = 4;
+
+    /**
+     * Bucket i holds timings below 2^i microseconds that didn't fit in bucket i - 1, the last bucket holds the rest
+     */
+    public static final int BUCKET_COUNT = 26;
+
+    public static final int MAX_REQUEST_CODES = 32;
+
+    // Layout of the metrics of one request code
+    private static final int TIMER_COUNT_OFFSET = 0;
+    private static final int TIMER_TOTAL_OFFSET = 1;
+    private static final int TIMER_BUCKETS_OFFSET = 2;
+    private static final int TIMER_SIZE = TIMER_BUCKETS_OFFSET + BUCKET_COUNT;
+    private static final int TIMERS_OFFSET = COUNTER_COUNT;
+    private static final int SLOT_SIZE = TIMERS_OFFSET + TIMER_COUNT * TIMER_SIZE;
+
+    // Request codes beyond MAX_REQUEST_CODES share the last slot
+    private static final int SLOT_COUNT = MAX_REQUEST_CODES + 1;
+    private static final int OVERFLOW_SLOT = MAX_REQUEST_CODES;
+
+    private static final int SLOT_FREE = 0;
+    private static final int SLOT_CLAIMING = 1;
+    private static final int SLOT_READY = 2;
+
+    @Nullable
+    private static volatile PermissionMetrics current;
+
+    private final AtomicIntegerArray slotStates = new AtomicIntegerArray(SLOT_COUNT);
+    private final int[] slotRequestCodes = new int[SLOT_COUNT];
+    private final AtomicLongArray values = new AtomicLongArray(SLOT_COUNT * SLOT_SIZE);
+
+    private PermissionMetrics() {}
+
+    /**
+     * Starts recording, metrics recorded before are kept
+     */
+    @SuppressWarnings("unused")
+    public static synchronized void enable() {
+        if (current == null) {
+            current = new PermissionMetrics();
+        }
+    }
+
+    /**
+     * Stops recording and drops everything that was recorded
+     */
+    @SuppressWarnings("unused")
+    public static synchronized void disable() {
+        current = null;
+    }
+
+    @SuppressWarnings("unused")
+    public static boolean isEnabled() {
+        return current != null;
+    }
+
+    /**
+     * Starts over with empty metrics, for example right after they were exported
+     */
+    @SuppressWarnings("unused")
+    public static synchronized void reset() {
+        if (current != null) {
+            current = new PermissionMetrics();
+        }
+    }
+
+    /**
+     * @return metrics of every request code that was recorded, empty if recording is turned off
+     * Counters keep being updated while the snapshot is taken, so they can be a few calls apart from each other
+     */
+    @SuppressWarnings("unused")
+    public static List<RequestMetrics> snapshot() {
+        PermissionMetrics metrics = current;
+        List<RequestMetrics> snapshot = new ArrayList<>();
+
+        if (metrics == null) {
+            return snapshot;
+        }
+
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (slot == OVERFLOW_SLOT || metrics.slotStates.get(slot) == SLOT_READY) {
+                long[] values = new long[SLOT_SIZE];
+                boolean recorded = false;
+
+                for (int i = 0; i < SLOT_SIZE; i++) {
+                    values[i] = metrics.values.get(slot * SLOT_SIZE + i);
+                    recorded |= values[i] != 0;
+                }
+
+                if (slot != OVERFLOW_SLOT || recorded) {
+                    snapshot.add(new RequestMetrics(metrics.slotRequestCodes[slot], slot == OVERFLOW_SLOT, values));
+                }
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * @return the metrics to record into, null if recording is turned off
+     */
+    @Nullable
+    static PermissionMetrics current() {
+        return current;
+    }
+
+    void increment(int requestCode, int counter) {
+        values.incrementAndGet(getSlot(requestCode) * SLOT_SIZE + counter);
+    }
+
+    void recordTime(int requestCode, int timer, long nanos) {
+        int index = getSlot(requestCode) * SLOT_SIZE + TIMERS_OFFSET + timer * TIMER_SIZE;
+        long micros = Math.max(nanos, 0) / 1000;
+
+        values.incrementAndGet(index + TIMER_COUNT_OFFSET);
+        values.addAndGet(index + TIMER_TOTAL_OFFSET, nanos);
+        values.incrementAndGet(index + TIMER_BUCKETS_OFFSET
+                + Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1));
+    }
+
+    /**
+     * Records the outcome a listener is about to get and how long it took since check()
+     */
+    void recordOutcome(int requestCode, int outcomeCounter, long checkStartNanos) {
+        increment(requestCode, outcomeCounter);
+
+        if (checkStartNanos != 0) {
+            recordTime(requestCode, TIMER_DECISION, System.nanoTime() - checkStartNanos);
+        }
+    }
+
+    /**
+     * Finds the slot of the request code, claims a free one the first time the request code is seen
+     */
+    private int getSlot(int requestCode) {
+        for (int slot = (mix(requestCode) & Integer.MAX_VALUE) % MAX_REQUEST_CODES, probes = 0;
+             probes < MAX_REQUEST_CODES; slot = (slot + 1) % MAX_REQUEST_CODES, probes++) {
+            int state = slotStates.get(slot);
+
+            if (state == SLOT_FREE && slotStates.compareAndSet(slot, SLOT_FREE, SLOT_CLAIMING)) {
+                slotRequestCodes[slot] = requestCode;
+                slotStates.set(slot, SLOT_READY);
+                return slot;
+            }
+
+            // Another thread is claiming the slot right now, it only has to write the request code
+            while ((state = slotStates.get(slot)) == SLOT_CLAIMING) {
+                Thread.yield();
+            }
+
+            if (state == SLOT_READY && slotRequestCodes[slot] == requestCode) {
+                return slot;
+            }
+        }
+
+        return OVERFLOW_SLOT;
+    }
+
+    private static int mix(int requestCode) {
+        int hash = requestCode * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Metrics of one request code at the time of the snapshot
+     */
+    public static final class RequestMetrics {
+        private final int requestCode;
+        private final boolean overflow;
+        private final long[] values;
+
+        private RequestMetrics(int requestCode, boolean overflow, long[] values) {
+            this.requestCode = requestCode;
+            this.overflow = overflow;
+            this.values = values;
+        }
+
+        /**
+         * Not meaningful for the overflow entry
+         */
+        @SuppressWarnings("unused")
+        public int getRequestCode() {
+            return requestCode;
+        }
+
+        /**
+         * @return true if these are the added up metrics of the request codes that didn't get their own
+         */
+        @SuppressWarnings("unused")
+        public boolean isOverflow() {
+            return overflow;
+        }
+
+        @SuppressWarnings("unused")
+        public long getCounter(int counter) {
+            return values[counter];
+        }
+
+        @SuppressWarnings("unused")
+        public long getTimerCount(int timer) {
+            return values[TIMERS_OFFSET + timer * TIMER_SIZE + TIMER_COUNT_OFFSET];
+        }
+
+        @SuppressWarnings("unused")
+        public long getTimerTotalNanos(int timer) {
+            return values[TIMERS_OFFSET + timer * TIMER_SIZE + TIMER_TOTAL_OFFSET];
+        }
+
+        /**
+         * @return how many timings fell into each bucket, see getBucketUpperBoundMicros()
+         */
+        @SuppressWarnings("unused")
+        public long[] getTimerBuckets(int timer) {
+            long[] buckets = new long[BUCKET_COUNT];
+            System.arraycopy(values, TIMERS_OFFSET + timer * TIMER_SIZE + TIMER_BUCKETS_OFFSET, buckets, 0, BUCKET_COUNT);
+            return buckets;
+        }
+
+        /**
+         * @return exclusive upper bound of the bucket in microseconds, Long.MAX_VALUE for the last bucket
+         */
+        @SuppressWarnings("unused")
+        public static long getBucketUpperBoundMicros(int bucket) {
+            return bucket < BUCKET_COUNT - 1 ? 1L << bucket : Long.MAX_VALUE;
+        }
+    }
+}
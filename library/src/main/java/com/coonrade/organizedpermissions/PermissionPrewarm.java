@@ -0,0 +1,46 @@
+package com.coonrade.organizedpermissions;
+
+import android.content.Context;
+import android.os.Process;
+
+/**
+ * Opt-in warm up at process start so that the first check() is answered from memory
+ * instead of calling the package manager on the main thread
+ * Turned on by overriding the organized_permissions_prewarm bool resource with true
+ */
+final class PermissionPrewarm {
+
+    private PermissionPrewarm() {}
+
+    static void startIfEnabled(final Context context) {
+        if (!PermissionUtil.isRuntimePermissionsEnabled()
+                || !context.getResources().getBoolean(R.bool.organized_permissions_prewarm)) {
+            return;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                prewarm(context);
+            }
+        }, "OrganizedPermissions-prewarm");
+
+        thread.start();
+    }
+
+    private static void prewarm(Context context) {
+        PermissionGroupIndex index = PermissionUtil.getManifestIndex(context);
+
+        if (index == null) {
+            return;
+        }
+
+        // Opened here so that the first check doesn't start a thread of its own for it
+        SharedGrantSnapshot.initOnCurrentThread(context);
+
+        // Groups that are not in the manifest can never be granted, there is no point in asking about them
+        GrantStateCache.refresh(context, index.getManifestMask());
+        PermissionHistory.load(context);
+    }
+}
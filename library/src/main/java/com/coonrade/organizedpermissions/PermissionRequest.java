@@ -0,0 +1,90 @@
+package com.coonrade.organizedpermissions;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+
+/**
+ * Everything a host needs to run a permission request
+ * Dialog titles and messages are already resolved to the ones provided or the defaults
+ * Immutable so it can be shared between threads and reused by PreparedPermissionRequest
+ */
+final class PermissionRequest {
+    // Context that check() was called with, an activity context lets the request run in a headless fragment
+    final Context context;
+    final boolean enableHeadlessRequest;
+
+    final PermissionGroupSet permissionGroups;
+    final int requestCode;
+
+    // Permission listener can be null
+    @Nullable
+    final PermissionListener permissionListener;
+
+    final boolean enableRationaleDialog, enableBlockedDialog, enableBackgroundDim;
+
+    final String rationaleDialogTitle, rationaleDialogMessage,
+            blockedDialogTitle, blockedDialogMessage;
+
+    // Requests for groups blocked within this window are answered from memory, 0 turns it off
+    final long blockedCooldownMillis;
+
+    // System.nanoTime() of the check() that made this request, 0 unless PermissionMetrics is recording
+    final long checkStartNanos;
+
+    PermissionRequest(Context context, boolean enableHeadlessRequest,
+                      PermissionGroupSet permissionGroups, int requestCode,
+                      @Nullable PermissionListener permissionListener,
+                      boolean enableRationaleDialog, String rationaleDialogTitle, String rationaleDialogMessage,
+                      boolean enableBlockedDialog, String blockedDialogTitle, String blockedDialogMessage,
+                      boolean enableBackgroundDim, long blockedCooldownMillis, long checkStartNanos) {
+        this.context = context;
+        this.enableHeadlessRequest = enableHeadlessRequest;
+        this.permissionGroups = permissionGroups;
+        this.requestCode = requestCode;
+        this.permissionListener = permissionListener;
+        this.enableRationaleDialog = enableRationaleDialog;
+        this.rationaleDialogTitle = rationaleDialogTitle;
+        this.rationaleDialogMessage = rationaleDialogMessage;
+        this.enableBlockedDialog = enableBlockedDialog;
+        this.blockedDialogTitle = blockedDialogTitle;
+        this.blockedDialogMessage = blockedDialogMessage;
+        this.enableBackgroundDim = enableBackgroundDim;
+        this.blockedCooldownMillis = blockedCooldownMillis;
+        this.checkStartNanos = checkStartNanos;
+    }
+
+    PermissionRequest withRequestCode(int requestCode, long checkStartNanos) {
+        if (requestCode == this.requestCode && checkStartNanos == this.checkStartNanos) {
+            return this;
+        }
+
+        return new PermissionRequest(context, enableHeadlessRequest, permissionGroups, requestCode, permissionListener,
+                enableRationaleDialog, rationaleDialogTitle, rationaleDialogMessage,
+                enableBlockedDialog, blockedDialogTitle, blockedDialogMessage,
+                enableBackgroundDim, blockedCooldownMillis, checkStartNanos);
+    }
+
+    /**
+     * Same request with the application context, for state that can outlive the caller's activity
+     * (a retained fragment keeps its request through configuration changes)
+     */
+    PermissionRequest withApplicationContext() {
+        Context applicationContext = context.getApplicationContext();
+
+        if (applicationContext == null || applicationContext == context) {
+            return this;
+        }
+
+        return new PermissionRequest(applicationContext, enableHeadlessRequest, permissionGroups, requestCode,
+                permissionListener, enableRationaleDialog, rationaleDialogTitle, rationaleDialogMessage,
+                enableBlockedDialog, blockedDialogTitle, blockedDialogMessage,
+                enableBackgroundDim, blockedCooldownMillis, checkStartNanos);
+    }
+
+    PermissionRequest withListener(@Nullable PermissionListener permissionListener) {
+        return new PermissionRequest(context, enableHeadlessRequest, permissionGroups, requestCode, permissionListener,
+                enableRationaleDialog, rationaleDialogTitle, rationaleDialogMessage,
+                enableBlockedDialog, blockedDialogTitle, blockedDialogMessage,
+                enableBackgroundDim, blockedCooldownMillis, checkStartNanos);
+    }
+}
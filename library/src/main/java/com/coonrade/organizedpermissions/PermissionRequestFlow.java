@@ -0,0 +1,452 @@
+package com.coonrade.organizedpermissions;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.Settings;
+import android.support.annotation.NonNull;
+
+/**
+ * Runs a permission request from start to finish: rationale, system request, result and blocked dialog
+ * The flow itself doesn't care where it runs, the host can be PermissionsActivity
+ * or a headless PermissionsFragment attached to the caller's activity
+ */
+@TargetApi(Build.VERSION_CODES.M)
+final class PermissionRequestFlow {
+
+    /**
+     * What the flow needs from the component it runs in
+     */
+    interface Host {
+        /**
+         * Activity that shows the dialogs
+         */
+        Activity getHostActivity();
+
+        void requestPermissions(@NonNull String[] permissions, int requestCode);
+
+        boolean shouldShowRequestPermissionRationale(@NonNull String permission);
+
+        /**
+         * Only PermissionsActivity can change the dim behind its dialogs, other hosts ignore this
+         */
+        void setBackgroundDimEnabled(boolean enabled);
+
+        /**
+         * Called once the flow is over and the host can go away
+         */
+        void finishFlow();
+    }
+
+    // Where the flow is, saved by hosts so that a recreated host can pick up where it was
+    // without asking the system again or showing a second request
+    static final int STATE_IDLE = 0;
+    static final int STATE_RATIONALE_SHOWN = 1;
+    static final int STATE_SYSTEM_REQUEST_PENDING = 2;
+    static final int STATE_BLOCKED_SHOWN = 3;
+
+    private final Host host;
+    private final PermissionRequest request;
+    private final String[] permissions;
+
+    private DialogInterface rationaleDialog, blockedDialog;
+
+    private int state = STATE_IDLE;
+    private boolean finished;
+
+    // Set once the listener got the outcome, the blocked dialog is shown after that
+    private boolean outcomeDispatched;
+
+    PermissionRequestFlow(Host host, PermissionRequest request) {
+        this.host = host;
+        this.request = request;
+        permissions = request.permissionGroups.getPermissions();
+    }
+
+    void start() {
+        // The scheduler gave up on the request while the host was starting, its listeners already got an outcome
+        if (!PermissionRequestScheduler.onFlowStarted(request)) {
+            journal(PermissionJournal.EVENT_HOST_LOST);
+            finished = true;
+            host.finishFlow();
+            return;
+        }
+
+        PermissionTrace.beginAsyncSection(PermissionTrace.SLICE_FLOW, request.requestCode);
+        journal(PermissionJournal.EVENT_FLOW_STARTED);
+
+        if (shouldShowRationale(permissions)) {
+            showRationale();
+        } else if (isKnownBlocked()) {
+            // The system would answer right away without showing anything, go straight to the outcome
+            onKnownBlocked();
+        } else {
+            // Permission has not been granted yet. Request it directly.
+            requestPermissions();
+
+            // Weird fix for flicking issues (flickering = dim on to off quickly)
+            // It will disable the flicking when the permissions are requested
+            // with the result permissionsBlocked when the blocked dialog is disabled
+            // It will not effect the dimness behind a dialog when a dialog is shown
+            // You can test this by removing the line of code below and then spamming "request permissions"
+            // when all permissions have been blocked and block dialog is disabled
+            // This has to be placed here because if a rationale is to be shown then the flickering can happen
+            // between the rationale dialog and permission dialog transition
+            // By putting it here we avoid this issue
+            // To elaborate more on this, as this is very confusing to grasp at first,
+            // this condition statement is ONLY called when no permissions have been asked before or
+            // when all condition statements have been blocked
+            // The first case doesn't matter here but the second one does
+            // The flickering issue comes only when nothing was shown to begin with (no dialog is shown like should show rationale)
+            // This is when we disable the dimming (all permissions blocked and blocked dialog is disabled)
+            // It's important to remember to enable dimming in permissionsBlocked if the blocked dialog is to be shown(also only if dimming was enabled)
+            // Another important note is that permission dialogs (provided by the system) are not affected by setTheme() after super.onCreate() is called
+            host.setBackgroundDimEnabled(false);
+        }
+    }
+
+    /**
+     * Continues the flow in a recreated host (for example after a rotation)
+     * Dialogs are shown again, a pending system request is left alone as its result goes to the new host
+     */
+    void restore(int savedState) {
+        state = savedState;
+        outcomeDispatched = savedState == STATE_BLOCKED_SHOWN;
+
+        switch (savedState) {
+            case STATE_RATIONALE_SHOWN:
+                showRationaleDialog();
+                break;
+            case STATE_SYSTEM_REQUEST_PENDING:
+                // Same as right after the request was made in start()
+                host.setBackgroundDimEnabled(false);
+                break;
+            case STATE_BLOCKED_SHOWN:
+                host.setBackgroundDimEnabled(request.enableBackgroundDim);
+                showBlockedDialog();
+                break;
+            case STATE_IDLE:
+            default:
+                start();
+                break;
+        }
+    }
+
+    /**
+     * Checks the request history to see if every permission group that isn't granted was blocked before
+     * Only called when no rationale should be shown, which is what the system says about blocked permissions too
+     * so the request's application context is enough for the history
+     */
+    private boolean isKnownBlocked() {
+        int mask = request.permissionGroups.getMask();
+        // Not counted, the flow only knows the batch's request code and not the ones of the callers
+        int blockedGroupMask = PermissionHistory.revalidateBlockedMask(request.context, mask, null, 0);
+        int grantedGroupMask = GrantStateCache.getGrantedMask() & mask;
+        return blockedGroupMask != 0 && (grantedGroupMask | blockedGroupMask) == mask;
+    }
+
+    private void onKnownBlocked() {
+        int mask = request.permissionGroups.getMask();
+        int grantedGroupMask = GrantStateCache.getGrantedMask() & mask;
+        PermissionResult result = new PermissionResult(grantedGroupMask, 0, mask & ~grantedGroupMask);
+
+        GrantStateCache.update(0, result.getBlockedMask());
+        GrantStateCache.setPermissionGroupsBlocked(result.getBlockedMask());
+
+        outcomeDispatched = true;
+        if (isListenerProvided())
+            request.permissionListener.onPermissionGroupsResult(request.requestCode, result);
+
+        permissionsBlocked();
+    }
+
+    int getState() {
+        return state;
+    }
+
+    private void requestPermissions() {
+        if (isListenerProvided())
+            request.permissionListener.onSystemRequestStarted(request.requestCode);
+
+        journal(PermissionJournal.EVENT_SYSTEM_REQUEST);
+        state = STATE_SYSTEM_REQUEST_PENDING;
+        PermissionTrace.beginAsyncSection(PermissionTrace.SLICE_SYSTEM_REQUEST, request.requestCode);
+        host.requestPermissions(permissions, request.requestCode);
+    }
+
+    /**
+     * Checks every permission to see if it needs to show rationale
+     * If it finds even just one then it has to show rationale for the entire thing
+     */
+    private boolean shouldShowRationale(String... permissions) {
+        for (String permission : permissions) {
+            if (shouldShowRationaleCheck(permission)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean shouldShowRationaleCheck(String permission) {
+        if (isListenerProvided())
+            request.permissionListener.onRationaleChecked(request.requestCode);
+
+        return host.shouldShowRequestPermissionRationale(permission);
+    }
+
+    void onRequestPermissionsResult(@NonNull String[] permissions, @NonNull int[] grantResults) {
+        PermissionTrace.endAsyncSection(PermissionTrace.SLICE_SYSTEM_REQUEST, request.requestCode);
+        PermissionTrace.beginSection("OrganizedPermissions.onRequestPermissionsResult");
+
+        try {
+            dispatchPermissionsResult(permissions, grantResults);
+        } finally {
+            PermissionTrace.endSection();
+        }
+    }
+
+    private void dispatchPermissionsResult(@NonNull String[] permissions, @NonNull int[] grantResults) {
+        if (isListenerProvided())
+            request.permissionListener.onPermissionsResult(request.requestCode, permissions, grantResults);
+
+        PermissionResult result = createPermissionResult(permissions, grantResults);
+
+        // An interrupted request wasn't answered by the user, there is nothing to remember
+        if (grantResults.length > 0) {
+            PermissionHistory.onRequestResult(request.context, result);
+        }
+
+        // Store the result so that later checks don't have to ask the system again
+        GrantStateCache.update(result.getGrantedMask(), result.getDeniedMask() | result.getBlockedMask());
+        GrantStateCache.setPermissionGroupsBlocked(result.getBlockedMask());
+
+        outcomeDispatched = true;
+        if (isListenerProvided())
+            request.permissionListener.onPermissionGroupsResult(request.requestCode, result);
+
+        if (result.isAnyBlocked()) {
+            // onRequestPermissionsResult() would not be called if permissions were blocked before
+            // this request started
+            permissionsBlocked();
+        } else if (result.areAllGranted()) {
+            // All permissions were granted
+            permissionsGranted();
+        } else {
+            // Some or all of the permissions were denied
+            permissionsDenied();
+        }
+    }
+
+    /**
+     * Turns the result of the request into a result for each permission group
+     * Permissions were requested in ascending permission group order, one per group
+     * Only denied permissions are checked to see if they are blocked, each of them needs just one rationale check
+     * If the request was interrupted (empty grantResults) every permission group counts as denied
+     */
+    private PermissionResult createPermissionResult(@NonNull String[] permissions, @NonNull int[] grantResults) {
+        int grantedGroupMask = 0, deniedGroupMask = 0, blockedGroupMask = 0;
+
+        int i = 0;
+        for (int remaining = request.permissionGroups.getMask(); remaining != 0; remaining &= remaining - 1, i++) {
+            int permissionGroupBit = remaining & -remaining;
+
+            if (i >= grantResults.length) {
+                deniedGroupMask |= permissionGroupBit;
+            } else if (grantResults[i] == PackageManager.PERMISSION_GRANTED) {
+                grantedGroupMask |= permissionGroupBit;
+            } else if (!shouldShowRationaleCheck(permissions[i])) {
+                // If a rationale should not be shown and a permission is not granted
+                // Then it can only mean that the permission was blocked (set to never ask again)
+                // This is safe to assume here since the permission was just asked
+                blockedGroupMask |= permissionGroupBit;
+            } else {
+                deniedGroupMask |= permissionGroupBit;
+            }
+        }
+
+        return new PermissionResult(grantedGroupMask, deniedGroupMask, blockedGroupMask);
+    }
+
+    private void permissionsGranted() {
+        if (isListenerProvided())
+            request.permissionListener.onPermissionsGranted(request.requestCode);
+        finish();
+    }
+
+    private void permissionsDenied() {
+        if (isListenerProvided())
+            request.permissionListener.onPermissionsDenied(request.requestCode);
+        finish();
+    }
+
+    private void showRationale() {
+        if (isListenerProvided())
+            request.permissionListener.onShowPermissionsRationale(request.requestCode);
+
+        // Checks if user of lib requested to show rationale dialog
+        if (request.enableRationaleDialog) {
+            showRationaleDialog();
+        } else {
+            requestPermissions();
+        }
+    }
+
+    /**
+     * Passes in if the blocking of permissions happened just now
+     * If it happened just now then this only notifies the setListener
+     * If this happened in the past (not during this request)
+     * then we have the option of showing blocked dialog
+     */
+    private void permissionsBlocked() {
+        if (isListenerProvided())
+            request.permissionListener.onPermissionsBlocked(request.requestCode);
+
+        if (request.enableBlockedDialog) {
+            // See notes above. when permissionsBlocked is called, the dim is disabled to avoid bug. this turns it back on if needed
+            if (request.enableBackgroundDim)
+                host.setBackgroundDimEnabled(true);
+            showBlockedDialog();
+        } else {
+            // If the user of lib did not enable blocked dialog then we must finish here
+            // The blocked dialog handles finishing on its own as it has to be done after interacting with the dialog
+            finish();
+        }
+    }
+
+    /**
+     * The journal records flow events for every request waiting on this flow
+     */
+    private void journal(int event) {
+        if (isListenerProvided())
+            request.permissionListener.onFlowEvent(request.requestCode, event);
+    }
+
+    /**
+     * @return true if the setListener was provided by the user of the library
+     */
+    private boolean isListenerProvided() {
+        return request.permissionListener != null;
+    }
+
+    private void showRationaleDialog() {
+        state = STATE_RATIONALE_SHOWN;
+        journal(PermissionJournal.EVENT_RATIONALE_SHOWN);
+        rationaleDialog = PermissionBackends.get().showDialog(host.getHostActivity(),
+                request.rationaleDialogTitle, request.rationaleDialogMessage,
+                "Allow", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(@NonNull DialogInterface dialog, int which) {
+                        journal(PermissionJournal.EVENT_RATIONALE_ACCEPTED);
+                        requestPermissions();
+                    }
+                },
+                "Deny", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(@NonNull DialogInterface dialog, int which) {
+                        rationaleDialogDismissed();
+                    }
+                });
+    }
+
+    private void showBlockedDialog() {
+        state = STATE_BLOCKED_SHOWN;
+        journal(PermissionJournal.EVENT_BLOCKED_DIALOG_SHOWN);
+        blockedDialog = PermissionBackends.get().showDialog(host.getHostActivity(),
+                request.blockedDialogTitle, request.blockedDialogMessage,
+                "Settings", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(@NonNull DialogInterface dialog, int which) {
+                        journal(PermissionJournal.EVENT_BLOCKED_DIALOG_SETTINGS);
+                        navigateToAppSystemSettings();
+                    }
+                },
+                "Deny", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(@NonNull DialogInterface dialog, int which) {
+                        blockedDialogDismissed();
+                    }
+                });
+    }
+
+    private void rationaleDialogDismissed() {
+        journal(PermissionJournal.EVENT_RATIONALE_DISMISSED);
+
+        if (isListenerProvided())
+            request.permissionListener.onRationaleDialogDismissed(request.requestCode);
+        finish();
+    }
+
+    private void blockedDialogDismissed() {
+        journal(PermissionJournal.EVENT_BLOCKED_DIALOG_DISMISSED);
+
+        if (isListenerProvided())
+            request.permissionListener.onBlockedDialogDismissed(request.requestCode);
+        finish();
+    }
+
+    private void navigateToAppSystemSettings() {
+        // Whatever the user changes there, the next request after coming back asks the system again
+        PermissionHistory.clearBlocked(request.permissionGroups.getMask());
+
+        Activity activity = host.getHostActivity();
+
+        Intent intent = new Intent(Settings.ACTION_APPLICATION_DETAILS_SETTINGS);
+        Uri uri = Uri.fromParts("package", activity.getPackageName(), null);
+        intent.setData(uri);
+        activity.startActivity(intent);
+
+        // Exit once the settings page is loaded
+        finish();
+    }
+
+    private void finish() {
+        PermissionTrace.endAsyncSection(PermissionTrace.SLICE_FLOW, request.requestCode);
+        finished = true;
+        host.finishFlow();
+        PermissionRequestScheduler.onRequestFinished(request);
+    }
+
+    /**
+     * Has to be called when the host goes away for good (not for configuration changes)
+     * If the flow didn't finish by then it counts as an interrupted request, every permission group is denied
+     * unless the listener already got the outcome (the blocked dialog was showing)
+     */
+    void onHostDestroyed() {
+        if (!finished) {
+            PermissionTrace.endAsyncSection(PermissionTrace.SLICE_FLOW, request.requestCode);
+            finished = true;
+
+            if (!outcomeDispatched) {
+                journal(PermissionJournal.EVENT_INTERRUPTED);
+
+                if (isListenerProvided()) {
+                    PermissionResult result = new PermissionResult(0, request.permissionGroups.getMask(), 0);
+                    request.permissionListener.onPermissionGroupsResult(request.requestCode, result);
+                    request.permissionListener.onPermissionsDenied(request.requestCode);
+                }
+            }
+
+            PermissionRequestScheduler.onRequestFinished(request);
+        }
+    }
+
+    /**
+     * Has to be called when the host is destroyed so that the dialogs don't leak
+     */
+    void dismissDialogs() {
+        if (rationaleDialog != null) {
+            rationaleDialog.dismiss();
+            rationaleDialog = null;
+        }
+
+        if (blockedDialog != null) {
+            blockedDialog.dismiss();
+            blockedDialog = null;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.coonrade.organizedpermissions;
+
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.util.LongSparseArray;
+
+/**
+ * Keeps requests in memory so that PermissionsActivity only needs a token in its intent
+ * instead of having the whole request parceled into extras
+ * Requests can never cross processes (the listener can't) so there is nothing to lose by not parceling them
+ */
+final class PermissionRequestRegistry {
+
+    // Token used when there is none, never handed out
+    static final long NO_TOKEN = 0;
+
+    private static final LongSparseArray<PermissionRequest> requests = new LongSparseArray<>();
+
+    // The pid is in the high bits so that a token from before a process restart
+    // (activity restored by the system) doesn't match a request from the new process
+    private static long nextToken = ((long) Process.myPid() << 32) | 1;
+
+    private PermissionRequestRegistry() {}
+
+    static synchronized long register(PermissionRequest request) {
+        long token = nextToken++;
+        requests.put(token, request);
+        return token;
+    }
+
+    /**
+     * @return request of the token or null if the token is unknown
+     * (the process was restarted since the token was handed out or the request is already over)
+     */
+    @Nullable
+    static synchronized PermissionRequest get(long token) {
+        return requests.get(token);
+    }
+
+    static synchronized void unregister(long token) {
+        requests.remove(token);
+    }
+
+    /**
+     * Forgets the request without its token, for hosts that were given up on before they started
+     */
+    static synchronized void unregister(PermissionRequest request) {
+        int index = requests.indexOfValue(request);
+
+        if (index >= 0) {
+            requests.removeAt(index);
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package com.coonrade.organizedpermissions;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.os.Build;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Makes sure only one permission request is shown at a time
+ * Requests made in the same frame are merged into one system request for all of their permission groups
+ * and the result is handed back to every waiting listener with its own request code
+ * Requests made while another one is showing wait for it to finish,
+ * unless the one showing already asks for all of their permission groups, then they just wait for its result
+ */
+@TargetApi(Build.VERSION_CODES.M)
+final class PermissionRequestScheduler {
+
+    // Request code of the merged system request, the request codes of the callers are only used for callbacks
+    private static final int BATCH_REQUEST_CODE = 1;
+
+    // A started host has this long to start its flow, otherwise the batch counts as interrupted
+    // The system can drop a host without telling anyone, for example an activity started from the background
+    static final long HOST_START_TIMEOUT_MILLIS = 5000;
+
+    // Everything below is only touched on the main thread
+    private static final List<PermissionRequest> pendingRequests = new ArrayList<>();
+
+    private static boolean frameScheduled;
+
+    @Nullable
+    private static Batch inFlightBatch;
+
+    private static final Runnable startNextBatch = new Runnable() {
+        @Override
+        public void run() {
+            frameScheduled = false;
+            startNextBatch();
+        }
+    };
+
+    private PermissionRequestScheduler() {}
+
+    /**
+     * Can be called from any thread, the request is started on the main thread
+     */
+    static void schedule(final PermissionRequest request) {
+        if (MainThreadExecutor.isMainThread()) {
+            addPendingRequest(request);
+        } else {
+            MainThreadExecutor.INSTANCE.execute(new Runnable() {
+                @Override
+                public void run() {
+                    addPendingRequest(request);
+                }
+            });
+        }
+    }
+
+    @MainThread
+    private static void addPendingRequest(PermissionRequest request) {
+        if (request.blockedCooldownMillis > 0 && answerFromBlockedCooldown(request)) {
+            return;
+        }
+
+        if (!request.enableBlockedDialog && answerFromHistory(request)) {
+            return;
+        }
+
+        // Users spamming the button would otherwise start the same request over and over
+        if (inFlightBatch != null && inFlightBatch.attach(request)) {
+            return;
+        }
+
+        pendingRequests.add(request);
+        scheduleNextBatch();
+    }
+
+    /**
+     * Answers the request from memory if every permission group is either granted or was blocked recently
+     * @return true if the request was answered
+     */
+    @MainThread
+    private static boolean answerFromBlockedCooldown(PermissionRequest request) {
+        int mask = request.permissionGroups.getMask();
+        int grantedGroupMask = GrantStateCache.getGrantedMask() & mask;
+        int blockedGroupMask = GrantStateCache.getRecentlyBlockedMask(request.blockedCooldownMillis) & mask;
+
+        if (blockedGroupMask == 0 || (grantedGroupMask | blockedGroupMask) != mask) {
+            return false;
+        }
+
+        Batch.dispatchResult(request, new PermissionResult(grantedGroupMask, 0, blockedGroupMask));
+        return true;
+    }
+
+    /**
+     * Answers the request without a host if every permission group is either granted
+     * or was blocked the last time it was requested
+     * Only for requests without the blocked dialog, the dialog itself needs a host
+     * @return true if the request was answered
+     */
+    @MainThread
+    private static boolean answerFromHistory(PermissionRequest request) {
+        int mask = request.permissionGroups.getMask();
+        int blockedGroupMask = PermissionHistory.revalidateBlockedMask(request.context, mask,
+                PermissionMetrics.current(), request.requestCode);
+        int grantedGroupMask = GrantStateCache.getGrantedMask() & mask;
+
+        if (blockedGroupMask == 0 || (grantedGroupMask | blockedGroupMask) != mask) {
+            return false;
+        }
+
+        GrantStateCache.setPermissionGroupsBlocked(blockedGroupMask);
+        Batch.dispatchResult(request, new PermissionResult(grantedGroupMask, 0, blockedGroupMask));
+        return true;
+    }
+
+    /**
+     * Waits for the next frame so that every request made until then ends up in the same batch
+     */
+    @MainThread
+    private static void scheduleNextBatch() {
+        if (!frameScheduled && inFlightBatch == null && !pendingRequests.isEmpty()) {
+            frameScheduled = true;
+            PermissionBackends.get().postFrameCallback(startNextBatch);
+        }
+    }
+
+    @MainThread
+    private static void startNextBatch() {
+        if (inFlightBatch != null) {
+            return;
+        }
+
+        List<PermissionRequest> waitingRequests = new ArrayList<>();
+        PermissionMetrics metrics = PermissionMetrics.current();
+
+        for (PermissionRequest request : pendingRequests) {
+            // The groups could have been granted by the batch that was showing when this request was made
+            if (GrantStateCache.arePermissionGroupsGranted(request.context, request.permissionGroups,
+                    metrics, request.requestCode)) {
+                Batch.dispatchResult(request, PermissionResult.granted(request.permissionGroups));
+            } else {
+                waitingRequests.add(request);
+            }
+        }
+
+        pendingRequests.clear();
+
+        if (!waitingRequests.isEmpty()) {
+            inFlightBatch = new Batch(waitingRequests);
+            startHost(inFlightBatch, waitingRequests);
+        }
+    }
+
+    /**
+     * Runs the batch inside the first caller's activity that can take it
+     * and falls back to PermissionsActivity otherwise
+     * The callers' requests still have their own contexts, the batch only keeps application contexts
+     */
+    @MainThread
+    private static void startHost(Batch batch, List<PermissionRequest> callerRequests) {
+        PermissionBackend backend = PermissionBackends.get();
+        batch.hostStartNanos = PermissionMetrics.current() != null ? System.nanoTime() : 0;
+
+        for (PermissionRequest request : callerRequests) {
+            if (request.enableHeadlessRequest && request.context instanceof Activity
+                    && backend.startFragmentHost((Activity) request.context, batch.request)) {
+                batch.recordHostStart(PermissionMetrics.COUNTER_FRAGMENT_STARTS, PermissionJournal.HOST_FRAGMENT);
+                watchHostStart(batch);
+                return;
+            }
+        }
+
+        if (backend.startActivityHost(callerRequests.get(0).context, batch.request)) {
+            batch.recordHostStart(PermissionMetrics.COUNTER_ACTIVITY_STARTS, PermissionJournal.HOST_ACTIVITY);
+            watchHostStart(batch);
+        } else {
+            // No flow will ever call back for this batch
+            interruptBatch(batch);
+        }
+    }
+
+    @MainThread
+    private static void watchHostStart(final Batch batch) {
+        PermissionBackends.get().postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                if (inFlightBatch == batch && !batch.flowStarted) {
+                    batch.onFlowEvent(BATCH_REQUEST_CODE, PermissionJournal.EVENT_HOST_TIMED_OUT);
+
+                    // An activity that never gets created never unregisters its request,
+                    // which holds the callers' listeners. A late one finds nothing and finishes
+                    PermissionRequestRegistry.unregister(batch.request);
+                    interruptBatch(batch);
+                }
+            }
+        }, HOST_START_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Gives every waiting request the outcome of an interrupted request, every permission group is denied
+     * and lets the next batch start
+     */
+    @MainThread
+    private static void interruptBatch(Batch batch) {
+        batch.onFlowEvent(BATCH_REQUEST_CODE, PermissionJournal.EVENT_INTERRUPTED);
+        batch.onPermissionGroupsResult(BATCH_REQUEST_CODE,
+                new PermissionResult(0, batch.request.permissionGroups.getMask(), 0));
+        onRequestFinished(batch.request);
+    }
+
+    /**
+     * Called by the flow before it shows anything
+     * @return false if the batch was already given up on, the flow must finish right away then
+     */
+    @MainThread
+    static boolean onFlowStarted(PermissionRequest request) {
+        if (inFlightBatch != null && inFlightBatch.request == request) {
+            inFlightBatch.flowStarted = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Forgets waiting and in flight requests, like a new process would
+     */
+    @VisibleForTesting
+    @MainThread
+    static void reset() {
+        pendingRequests.clear();
+        inFlightBatch = null;
+        frameScheduled = false;
+    }
+
+    /**
+     * Called by the flow once the request is over, starts the next batch if requests are waiting
+     */
+    @MainThread
+    static void onRequestFinished(PermissionRequest request) {
+        if (inFlightBatch != null && inFlightBatch.request == request) {
+            inFlightBatch = null;
+            scheduleNextBatch();
+        }
+    }
+
+    /**
+     * Requests merged into a single system request
+     * Listens to the merged request and fans the result out to every waiting listener
+     */
+    private static final class Batch extends PermissionListener {
+        final List<PermissionRequest> waitingRequests;
+        final PermissionRequest request;
+
+        // Requests whose outcome was blocked, they are the ones waiting for the blocked dialog
+        private final List<PermissionRequest> blockedRequests = new ArrayList<>();
+
+        // Once the result was handed out, requests can't join this batch anymore
+        private boolean resultDispatched;
+
+        // Set once a host started the flow, until then the batch can time out
+        boolean flowStarted;
+
+        // System.nanoTime() of when the host was started, 0 unless PermissionMetrics is recording
+        long hostStartNanos;
+
+        /**
+         * The batch outlives the callers' activities when its host is a retained fragment
+         * so it only keeps the application context of each request
+         */
+        Batch(List<PermissionRequest> callerRequests) {
+            waitingRequests = new ArrayList<>(callerRequests.size());
+
+            for (PermissionRequest request : callerRequests) {
+                waitingRequests.add(request.withApplicationContext());
+            }
+
+            request = merge(waitingRequests);
+        }
+
+        /**
+         * Asks for every permission group of the waiting requests
+         * A dialog is shown if any of the requests enabled it, with the title/message of the first one that did
+         * Background dim and the context come from the first request
+         */
+        private PermissionRequest merge(List<PermissionRequest> requests) {
+            PermissionRequest first = requests.get(0);
+            PermissionRequest rationale = first, blocked = first;
+
+            int permissionGroupMask = 0;
+            boolean enableRationaleDialog = false, enableBlockedDialog = false;
+
+            for (PermissionRequest request : requests) {
+                permissionGroupMask |= request.permissionGroups.getMask();
+
+                if (request.enableRationaleDialog && !enableRationaleDialog) {
+                    enableRationaleDialog = true;
+                    rationale = request;
+                }
+
+                if (request.enableBlockedDialog && !enableBlockedDialog) {
+                    enableBlockedDialog = true;
+                    blocked = request;
+                }
+            }
+
+            return new PermissionRequest(first.context, first.enableHeadlessRequest,
+                    PermissionGroupSet.fromMask(permissionGroupMask), BATCH_REQUEST_CODE, this,
+                    enableRationaleDialog, rationale.rationaleDialogTitle, rationale.rationaleDialogMessage,
+                    enableBlockedDialog, blocked.blockedDialogTitle, blocked.blockedDialogMessage,
+                    first.enableBackgroundDim, 0, 0);
+        }
+
+        /**
+         * Lets a new request wait for this batch if it asks for nothing more than this batch does
+         * @return true if the request joined the batch
+         */
+        boolean attach(PermissionRequest waitingRequest) {
+            if (resultDispatched || !request.permissionGroups.containsAll(waitingRequest.permissionGroups)) {
+                return false;
+            }
+
+            waitingRequests.add(waitingRequest.withApplicationContext());
+            return true;
+        }
+
+        /**
+         * Every waiting request counts the host as started for it
+         */
+        void recordHostStart(int counter, int host) {
+            PermissionMetrics metrics = PermissionMetrics.current();
+
+            if (metrics != null) {
+                for (PermissionRequest request : waitingRequests) {
+                    metrics.increment(request.requestCode, counter);
+                }
+            }
+
+            PermissionJournal journal = PermissionJournal.current();
+
+            if (journal != null) {
+                for (PermissionRequest request : waitingRequests) {
+                    journal.record(PermissionJournal.EVENT_HOST_STARTED, host, request.requestCode,
+                            request.permissionGroups.getMask(), 0, 0, 0);
+                }
+            }
+        }
+
+        /**
+         * Blocked dialog events only concern the requests that got a blocked outcome
+         */
+        @Override
+        void onFlowEvent(int requestCode, int event) {
+            PermissionJournal journal = PermissionJournal.current();
+
+            if (journal == null) {
+                return;
+            }
+
+            boolean blockedDialogEvent = event == PermissionJournal.EVENT_BLOCKED_DIALOG_SHOWN
+                    || event == PermissionJournal.EVENT_BLOCKED_DIALOG_SETTINGS
+                    || event == PermissionJournal.EVENT_BLOCKED_DIALOG_DISMISSED;
+
+            for (PermissionRequest request : blockedDialogEvent ? blockedRequests : waitingRequests) {
+                journal.record(event, request.requestCode, request.permissionGroups.getMask());
+            }
+        }
+
+        @Override
+        void onSystemRequestStarted(int requestCode) {
+            PermissionMetrics metrics = PermissionMetrics.current();
+
+            if (metrics != null && hostStartNanos != 0) {
+                long nanos = System.nanoTime() - hostStartNanos;
+
+                for (PermissionRequest request : waitingRequests) {
+                    metrics.recordTime(request.requestCode, PermissionMetrics.TIMER_HOST_TO_SYSTEM_REQUEST, nanos);
+                }
+            }
+        }
+
+        @Override
+        void onRationaleChecked(int requestCode) {
+            PermissionMetrics metrics = PermissionMetrics.current();
+
+            if (metrics != null) {
+                for (PermissionRequest request : waitingRequests) {
+                    metrics.increment(request.requestCode, PermissionMetrics.COUNTER_RATIONALE_CALLS);
+                }
+            }
+        }
+
+        @Override
+        public void onShowPermissionsRationale(int requestCode) {
+            for (PermissionRequest request : waitingRequests) {
+                if (request.permissionListener != null)
+                    request.permissionListener.onShowPermissionsRationale(request.requestCode);
+            }
+        }
+
+        @Override
+        public void onRationaleDialogDismissed(int requestCode) {
+            // The request is over without an outcome, late requests have to start a batch of their own
+            resultDispatched = true;
+
+            for (PermissionRequest request : waitingRequests) {
+                // The request ends here without an outcome, dispatchResult() won't close its slice
+                PermissionTrace.endAsyncSection(PermissionTrace.SLICE_REQUEST, request.requestCode);
+
+                if (request.permissionListener != null)
+                    request.permissionListener.onRationaleDialogDismissed(request.requestCode);
+            }
+
+            onRequestFinished(request);
+        }
+
+        @Override
+        public void onPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+            for (PermissionRequest request : waitingRequests) {
+                if (request.permissionListener != null) {
+                    int[] requestGrantResults = selectGrantResults(request, grantResults);
+                    request.permissionListener.onPermissionsResult(request.requestCode,
+                            request.permissionGroups.getPermissions(), requestGrantResults);
+                }
+            }
+        }
+
+        /**
+         * Picks the grant results of the request's permission groups out of the merged results
+         * Both are in ascending permission group order, one permission per group
+         */
+        private int[] selectGrantResults(PermissionRequest waitingRequest, int[] grantResults) {
+            // Interrupted request, nothing to pick from
+            if (grantResults.length == 0) {
+                return grantResults;
+            }
+
+            int requestMask = waitingRequest.permissionGroups.getMask();
+            int[] requestGrantResults = new int[Integer.bitCount(requestMask)];
+
+            int i = 0, j = 0;
+            for (int remaining = request.permissionGroups.getMask(); remaining != 0; remaining &= remaining - 1, i++) {
+                if ((remaining & -remaining & requestMask) != 0) {
+                    requestGrantResults[j++] = grantResults[i];
+                }
+            }
+
+            return requestGrantResults;
+        }
+
+        /**
+         * Every waiting request gets its outcome here, only for its own permission groups
+         * The outcome callbacks of the merged request that come right after are ignored
+         */
+        @Override
+        public void onPermissionGroupsResult(int requestCode, PermissionResult result) {
+            // Every waiting request gets exactly one outcome
+            if (resultDispatched) {
+                return;
+            }
+
+            resultDispatched = true;
+
+            for (PermissionRequest request : waitingRequests) {
+                int mask = request.permissionGroups.getMask();
+                PermissionResult requestResult = new PermissionResult(result.getGrantedMask() & mask,
+                        result.getDeniedMask() & mask, result.getBlockedMask() & mask);
+
+                if (requestResult.isAnyBlocked()) {
+                    blockedRequests.add(request);
+                }
+
+                dispatchResult(request, requestResult);
+            }
+        }
+
+        @Override
+        public void onPermissionsGranted(int requestCode) {}
+
+        @Override
+        public void onBlockedDialogDismissed(int requestCode) {
+            for (PermissionRequest request : blockedRequests) {
+                if (request.permissionListener != null)
+                    request.permissionListener.onBlockedDialogDismissed(request.requestCode);
+            }
+        }
+
+        static void dispatchResult(@NonNull PermissionRequest request, PermissionResult result) {
+            PermissionTrace.endAsyncSection(PermissionTrace.SLICE_REQUEST, request.requestCode);
+            PermissionMetrics metrics = PermissionMetrics.current();
+
+            if (metrics != null) {
+                metrics.recordOutcome(request.requestCode, result.isAnyBlocked() ? PermissionMetrics.COUNTER_BLOCKED
+                        : result.areAllGranted() ? PermissionMetrics.COUNTER_GRANTED : PermissionMetrics.COUNTER_DENIED,
+                        request.checkStartNanos);
+            }
+
+            PermissionJournal journal = PermissionJournal.current();
+
+            if (journal != null) {
+                journal.record(result.isAnyBlocked() ? PermissionJournal.EVENT_BLOCKED
+                        : result.areAllGranted() ? PermissionJournal.EVENT_GRANTED : PermissionJournal.EVENT_DENIED,
+                        request.requestCode, request.permissionGroups.getMask(), result);
+            }
+
+            PermissionListener listener = request.permissionListener;
+
+            if (listener == null) {
+                return;
+            }
+
+            listener.onPermissionGroupsResult(request.requestCode, result);
+
+            if (result.isAnyBlocked()) {
+                listener.onPermissionsBlocked(request.requestCode);
+            } else if (result.areAllGranted()) {
+                listener.onPermissionsGranted(request.requestCode);
+            } else {
+                listener.onPermissionsDenied(request.requestCode);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.coonrade.organizedpermissions;
+
+/**
+ * Immutable outcome of a permission request for each permission group
+ * Every requested group is in exactly one of granted, denied or blocked
+ * Blocked groups were denied with "never ask again" and can only be granted from the app's system settings
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PermissionResult {
+
+    // Results where every requested group was granted, created up front like the sets in PermissionGroupSet
+    private static final PermissionResult[] GRANTED_RESULTS =
+            new PermissionResult[1 << PermissionGroupIndex.GROUP_COUNT];
+
+    static {
+        for (int mask = 0; mask < GRANTED_RESULTS.length; mask++) {
+            GRANTED_RESULTS[mask] = new PermissionResult(mask, 0, 0);
+        }
+    }
+
+    private final int grantedMask, deniedMask, blockedMask;
+
+    PermissionResult(int grantedMask, int deniedMask, int blockedMask) {
+        this.grantedMask = grantedMask;
+        this.deniedMask = deniedMask & ~grantedMask;
+        this.blockedMask = blockedMask & ~grantedMask & ~deniedMask;
+    }
+
+    /**
+     * Result for permission groups that are all granted, shared so the granted path doesn't allocate
+     */
+    static PermissionResult granted(PermissionGroupSet permissionGroups) {
+        return GRANTED_RESULTS[permissionGroups.getMask()];
+    }
+
+    /**
+     * Combines results of different checks, a group that was granted in either of them counts as granted
+     */
+    static PermissionResult merge(PermissionResult first, PermissionResult second) {
+        return new PermissionResult(first.grantedMask | second.grantedMask,
+                first.deniedMask | second.deniedMask, first.blockedMask | second.blockedMask);
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionGroupSet getRequested() {
+        return PermissionGroupSet.fromMask(grantedMask | deniedMask | blockedMask);
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionGroupSet getGranted() {
+        return PermissionGroupSet.fromMask(grantedMask);
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionGroupSet getDenied() {
+        return PermissionGroupSet.fromMask(deniedMask);
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionGroupSet getBlocked() {
+        return PermissionGroupSet.fromMask(blockedMask);
+    }
+
+    @SuppressWarnings("unused")
+    public boolean isGranted(@PermissionGroup int permissionGroup) {
+        return (grantedMask & (1 << permissionGroup)) != 0;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean isDenied(@PermissionGroup int permissionGroup) {
+        return (deniedMask & (1 << permissionGroup)) != 0;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean isBlocked(@PermissionGroup int permissionGroup) {
+        return (blockedMask & (1 << permissionGroup)) != 0;
+    }
+
+    /**
+     * @return true if every requested permission group was granted
+     */
+    @SuppressWarnings("unused")
+    public boolean areAllGranted() {
+        return deniedMask == 0 && blockedMask == 0;
+    }
+
+    /**
+     * @return true if at least one requested permission group was blocked
+     */
+    @SuppressWarnings("unused")
+    public boolean isAnyBlocked() {
+        return blockedMask != 0;
+    }
+
+    int getGrantedMask() {
+        return grantedMask;
+    }
+
+    int getDeniedMask() {
+        return deniedMask;
+    }
+
+    int getBlockedMask() {
+        return blockedMask;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PermissionResult)) return false;
+
+        PermissionResult result = (PermissionResult) o;
+        return grantedMask == result.grantedMask && deniedMask == result.deniedMask
+                && blockedMask == result.blockedMask;
+    }
+
+    @Override
+    public int hashCode() {
+        return grantedMask | (deniedMask << 10) | (blockedMask << 20);
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionResult{granted=" + getGranted() + ", denied=" + getDenied() + ", blocked=" + getBlocked() + "}";
+    }
+}
@@ -0,0 +1,31 @@
+package com.coonrade.organizedpermissions;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+@SuppressWarnings("WeakerAccess")
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({PermissionState.GRANTED,
+        PermissionState.DENIED,
+        PermissionState.BLOCKED,
+        PermissionState.NEVER_ASKED})
+public @interface PermissionState {
+    /**
+     * Permission group is granted
+     */
+    int GRANTED = 0;
+
+
+    // Asked before and denied, can be asked again
+    int DENIED = 1;
+
+
+    // Denied with "never ask again", can only be granted from the app's system settings
+    int BLOCKED = 2;
+
+
+    // Not granted and never asked for
+    int NEVER_ASKED = 3;
+}
@@ -0,0 +1,144 @@
+package com.coonrade.organizedpermissions;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.Context;
+import android.os.Build;
+
+/**
+ * Read-only snapshot of the state of every permission group, made by OrganizedPermissions.status()
+ * Every permission group is in exactly one of granted, denied, blocked or never asked
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PermissionStatus {
+
+    private final int grantedMask, deniedMask, blockedMask, neverAskedMask;
+    private final int manifestMask;
+
+    private PermissionStatus(int grantedMask, int deniedMask, int blockedMask, int manifestMask) {
+        int allMask = PermissionGroupSet.all().getMask();
+
+        this.grantedMask = grantedMask;
+        this.deniedMask = deniedMask & ~grantedMask;
+        this.blockedMask = blockedMask & ~grantedMask & ~deniedMask;
+        this.neverAskedMask = allMask & ~grantedMask & ~this.deniedMask & ~this.blockedMask;
+        this.manifestMask = manifestMask;
+    }
+
+    /**
+     * Answers from the grant cache and the request history, only groups with an unknown grant state
+     * are asked from the system and only if they are in the manifest, nothing is shown
+     * With an activity the system is also asked about the rationale of every group that isn't granted
+     */
+    static PermissionStatus create(Context context) {
+        PermissionGroupIndex index = PermissionUtil.getManifestIndex(context);
+
+        // Without the manifest every group has to be asked about
+        int manifestMask = index != null ? index.getManifestMask() : PermissionGroupSet.all().getMask();
+
+        if (!PermissionUtil.isRuntimePermissionsEnabled()) {
+            // Below Marshmallow everything in the manifest was granted at install time
+            return new PermissionStatus(manifestMask, 0, 0, manifestMask);
+        }
+
+        return createWithRuntimePermissions(context, manifestMask);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static PermissionStatus createWithRuntimePermissions(Context context, int manifestMask) {
+        // Groups that are not in the manifest can never be granted, there is no point in asking about them
+        GrantStateCache.refresh(context, manifestMask);
+
+        int blockedGroupMask = PermissionHistory.revalidateBlockedMask(context, manifestMask, null, 0);
+        int grantedGroupMask = GrantStateCache.getGrantedMask();
+        int requestedGroupMask = PermissionHistory.getRequestedMask(context) & ~grantedGroupMask;
+        int deniedGroupMask = requestedGroupMask & ~blockedGroupMask;
+
+        // The history only knows about requests made through the library and forgets blocked groups after a while
+        // The system shows a rationale only for groups that were denied and can be asked again,
+        // so a requested group without one is blocked
+        if (context instanceof Activity) {
+            Activity activity = (Activity) context;
+            deniedGroupMask = 0;
+
+            for (int remaining = manifestMask & ~grantedGroupMask & ~blockedGroupMask; remaining != 0; remaining &= remaining - 1) {
+                int permissionGroupBit = remaining & -remaining;
+
+                if (PermissionBackends.get().shouldShowRequestPermissionRationale(activity,
+                        PermissionUtil.getPermissionFromGroup(Integer.numberOfTrailingZeros(permissionGroupBit)))) {
+                    deniedGroupMask |= permissionGroupBit;
+                } else if ((requestedGroupMask & permissionGroupBit) != 0) {
+                    blockedGroupMask |= permissionGroupBit;
+                }
+            }
+        }
+
+        return new PermissionStatus(grantedGroupMask, deniedGroupMask, blockedGroupMask, manifestMask);
+    }
+
+    @SuppressWarnings("unused")
+    @PermissionState
+    public int getState(@PermissionGroup int permissionGroup) {
+        int permissionGroupBit = 1 << permissionGroup;
+
+        if ((grantedMask & permissionGroupBit) != 0) {
+            return PermissionState.GRANTED;
+        } else if ((deniedMask & permissionGroupBit) != 0) {
+            return PermissionState.DENIED;
+        } else if ((blockedMask & permissionGroupBit) != 0) {
+            return PermissionState.BLOCKED;
+        } else {
+            return PermissionState.NEVER_ASKED;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionGroupSet getGranted() {
+        return PermissionGroupSet.fromMask(grantedMask);
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionGroupSet getDenied() {
+        return PermissionGroupSet.fromMask(deniedMask);
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionGroupSet getBlocked() {
+        return PermissionGroupSet.fromMask(blockedMask);
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionGroupSet getNeverAsked() {
+        return PermissionGroupSet.fromMask(neverAskedMask);
+    }
+
+    /**
+     * Groups that are not in the manifest are never granted, check() reports an error for them
+     * @return true if the manifest has at least one permission of the group
+     */
+    @SuppressWarnings("unused")
+    public boolean isInManifest(@PermissionGroup int permissionGroup) {
+        return (manifestMask & (1 << permissionGroup)) != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PermissionStatus)) return false;
+
+        PermissionStatus status = (PermissionStatus) o;
+        return grantedMask == status.grantedMask && deniedMask == status.deniedMask
+                && blockedMask == status.blockedMask && manifestMask == status.manifestMask;
+    }
+
+    @Override
+    public int hashCode() {
+        return grantedMask | (deniedMask << 10) | (blockedMask << 20);
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionStatus{granted=" + getGranted() + ", denied=" + getDenied() + ", blocked=" + getBlocked()
+                + ", neverAsked=" + getNeverAsked() + "}";
+    }
+}
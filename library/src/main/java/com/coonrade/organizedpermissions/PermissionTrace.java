@@ -0,0 +1,141 @@
+package com.coonrade.organizedpermissions;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.lang.reflect.Method;
+
+/**
+ * Opt-in android.os.Trace sections and async slices around every phase of a check and a request
+ * so they show up in systrace and Perfetto
+ *
+ * Sections are only emitted while tracing is turned on here and the app is being traced
+ * Async slices and the traced check are public API from Android 10 and hidden methods before that
+ * Both are above compileSdk so they are reached through reflection, without them there are no async slices
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PermissionTrace {
+
+    // Async slices, the cookie is the request code
+    static final String SLICE_REQUEST = "OrganizedPermissions.request";
+    static final String SLICE_FLOW = "OrganizedPermissions.flow";
+    static final String SLICE_SYSTEM_REQUEST = "OrganizedPermissions.systemRequest";
+
+    // Build.VERSION_CODES.Q, above compileSdk
+    private static final int ANDROID_10 = 29;
+
+    // Hidden Trace.TRACE_TAG_APP, boxed once so that checking it doesn't allocate
+    private static final long TRACE_TAG_APP = 1L << 12;
+    private static final Object[] TRACE_TAG_APP_ARGS = {TRACE_TAG_APP};
+    private static final Object[] NO_ARGS = {};
+
+    private static volatile boolean enabled;
+
+    // Methods of Trace looked up the first time tracing is turned on
+    // From Android 10 they are the public ones, which don't take the tag
+    private static Method isTracing, asyncTraceBegin, asyncTraceEnd;
+    private static boolean publicApi;
+    private static boolean reflectionLoaded;
+
+    private PermissionTrace() {}
+
+    /**
+     * Turned off by default, turning it on costs a reflection lookup
+     * Best done at startup, sections that are open while it changes are left unbalanced
+     */
+    @SuppressWarnings("unused")
+    public static void setEnabled(boolean enabled) {
+        if (enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            loadReflection();
+        }
+
+        PermissionTrace.enabled = enabled;
+    }
+
+    /**
+     * @return true if tracing is turned on here and the app is being traced right now
+     * A volatile read when tracing is turned off here, use it before building section names
+     */
+    static boolean isEnabled() {
+        if (!enabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return false;
+        }
+
+        // Without the method sections are still written, Trace drops them when nobody is tracing
+        Object tagEnabled = invoke(isTracing, publicApi ? NO_ARGS : TRACE_TAG_APP_ARGS);
+        return tagEnabled == null || (Boolean) tagEnabled;
+    }
+
+    /**
+     * Has to be closed with endSection() on the same thread
+     * Trace itself skips the section when nobody is tracing, so only the flag here is checked
+     */
+    static void beginSection(String sectionName) {
+        if (enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(sectionName);
+        }
+    }
+
+    static void endSection() {
+        if (enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    static void beginAsyncSection(String sectionName, int cookie) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        invoke(asyncTraceBegin, asyncArgs(sectionName, cookie));
+    }
+
+    static void endAsyncSection(String sectionName, int cookie) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        invoke(asyncTraceEnd, asyncArgs(sectionName, cookie));
+    }
+
+    private static Object[] asyncArgs(String sectionName, int cookie) {
+        return publicApi ? new Object[]{sectionName, cookie} : new Object[]{TRACE_TAG_APP, sectionName, cookie};
+    }
+
+    private static synchronized void loadReflection() {
+        if (reflectionLoaded) {
+            return;
+        }
+
+        try {
+            if (Build.VERSION.SDK_INT >= ANDROID_10) {
+                isTracing = Trace.class.getMethod("isEnabled");
+                asyncTraceBegin = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                asyncTraceEnd = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+                publicApi = true;
+            } else {
+                isTracing = Trace.class.getMethod("isTagEnabled", long.class);
+                asyncTraceBegin = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+                asyncTraceEnd = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+            }
+        } catch (Exception e) {
+            // Hidden API is not there or not allowed, sections still work without it
+            isTracing = asyncTraceBegin = asyncTraceEnd = null;
+            publicApi = false;
+        }
+
+        reflectionLoaded = true;
+    }
+
+    private static Object invoke(Method method, Object[] args) {
+        if (method == null) {
+            return null;
+        }
+
+        try {
+            return method.invoke(null, args);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
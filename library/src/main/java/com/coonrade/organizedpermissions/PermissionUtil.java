@@ -2,17 +2,19 @@ package com.coonrade.organizedpermissions;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 
-import com.coonrade.organizedpermissions.util.ArrayUtil;
+class PermissionUtil {
 
-import java.util.ArrayList;
-import java.util.List;
+    // Requested permissions can't change while the process is alive
+    // so once they are read from the package manager they are indexed and kept for the rest of the process
+    @Nullable
+    private static volatile PermissionGroupIndex manifestIndex;
 
-class PermissionUtil {
+    private static final Object MANIFEST_LOCK = new Object();
 
     @TargetApi(Build.VERSION_CODES.M)
     static boolean arePermissionsGranted(Context context, String... permissions) {
@@ -25,14 +27,22 @@ class PermissionUtil {
         return true;
     }
 
+    /**
+     * Checks if every permission group in the set is granted
+     * Groups with a known grant state are answered from GrantStateCache
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    static boolean arePermissionGroupsGranted(Context context, PermissionGroupSet permissionGroups) {
+        return GrantStateCache.arePermissionGroupsGranted(context, permissionGroups);
+    }
+
     @TargetApi(Build.VERSION_CODES.M)
     static boolean isPermissionGranted(Context context, String permission) {
-        return context.checkSelfPermission(permission) == PackageManager.PERMISSION_GRANTED;
-        //return ContextCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+        return PermissionBackends.get().checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
     }
 
     static boolean isRuntimePermissionsEnabled() {
-        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        return PermissionBackends.get().isRuntimePermissionsEnabled();
     }
 
     /**
@@ -40,75 +50,74 @@ class PermissionUtil {
      * from each permission group that was passed in as an argument
      * An error can happen if none of the permissions from a permission group are included in the manifest
      */
-    static boolean arePermissionGroupsInManifest(Context context, Integer[] permissionGroups)
+    static boolean arePermissionGroupsInManifest(Context context, PermissionGroupSet permissionGroups)
     {
-        String[] manifestPermissions = getManifestPermissions(context);
-
-        // Will return null if there are no permissions in the manifest
-        if (manifestPermissions != null) {
-            // Check every permission group
-            for (int permissionGroup : permissionGroups) {
-                // If we find a permission group that has no permissions in the manifest then we automatically return false
-                if (!isPermissionGroupInManifest(manifestPermissions, permissionGroup)) {
-                    return false;
-                }
-            }
+        PermissionGroupIndex index = getManifestIndex(context);
 
-            // Only returns true if for loop is done running
-            // This means every permission group has at least one permission in the manifest
-            return true;
+        // Will return null if the manifest permissions could not be read
+        if (index != null) {
+            // Every permission group has to have at least one permission in the manifest
+            return index.areInManifest(permissionGroups.getMask());
         }
 
         return false;
     }
 
     /**
-     * Checks if a permission group has at least one permission in the manifest
+     * Returns the index of permission groups found in the manifest
+     * The package manager is only queried the first time, every call after that is answered from memory
+     * Safe to call from any thread
      */
-    private static boolean isPermissionGroupInManifest(String[] manifestPermissions, int permissionGroup) {
-        String[] permissions = getPermissionsFromGroup(permissionGroup);
-
-        for (String permission : permissions) {
-            if(isPermissionInManifest(manifestPermissions, permission)) {
-                return true;
+    @Nullable
+    static PermissionGroupIndex getManifestIndex(Context context) {
+        PermissionGroupIndex index = manifestIndex;
+
+        if (index == null) {
+            synchronized (MANIFEST_LOCK) {
+                index = manifestIndex;
+
+                if (index == null) {
+                    PermissionTrace.beginSection("OrganizedPermissions.getManifestPermissions");
+
+                    try {
+                        String[] manifestPermissions = PermissionBackends.get().getRequestedPermissions(context);
+
+                        // A failed lookup is not cached so that it can be retried on the next check
+                        if (manifestPermissions != null) {
+                            index = PermissionGroupIndex.build(manifestPermissions);
+                            manifestIndex = index;
+                        }
+                    } finally {
+                        PermissionTrace.endSection();
+                    }
+                }
             }
         }
 
-        return false;
+        return index;
     }
 
-    /**
-     * Checks if a specific permission is in the manifest
-     */
-    private static boolean isPermissionInManifest(String[] manifestPermissions, String permission) {
-        for (String manifestPermission : manifestPermissions) {
-            if (manifestPermission.equals(permission)) {
-                return true;
-            }
+    @VisibleForTesting
+    static void initManifestIndex(String[] manifestPermissions) {
+        synchronized (MANIFEST_LOCK) {
+            manifestIndex = PermissionGroupIndex.build(manifestPermissions);
         }
-
-        return false;
     }
 
     /**
-     * Returns list of all permissions in the manifest
+     * Forgets the index so that the next check reads the manifest from the backend again
      */
-    @Nullable
-    private static String[] getManifestPermissions(Context context) {
-        try {
-            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), PackageManager.GET_PERMISSIONS);
-            return info.requestedPermissions;
-        } catch (Exception e) {
-            e.printStackTrace();
+    @VisibleForTesting
+    static void clearManifestIndex() {
+        synchronized (MANIFEST_LOCK) {
+            manifestIndex = null;
         }
-
-        return null;
     }
 
     /**
      * Gives an array of all permissions that are part of permission group
      */
-    private static String[] getPermissionsFromGroup(@PermissionGroup int permissionGroup) {
+    static String[] getPermissionsFromGroup(@PermissionGroup int permissionGroup) {
         switch (permissionGroup) {
             case PermissionGroup.CALENDAR:
                 return PermissionList.CALENDAR;
@@ -133,18 +142,20 @@ class PermissionUtil {
     }
 
     /**
-     * Takes in the readable permission groups as array
+     * Takes in the readable permission groups as a bitmask
      * and returns an array of permissions equivalent to those passed
      * but ones that will be used by OS to understand which permissions to grant
+     * Permissions are in ascending permission group order
      */
-    static String[] formatPermissionGroups(@PermissionGroup Integer[] permissions) {
-        List<String> formattedPermissions = new ArrayList<>();
+    static String[] formatPermissionGroups(int permissionGroupMask) {
+        String[] formattedPermissions = new String[Integer.bitCount(permissionGroupMask)];
 
-        for (@PermissionGroup int permission : permissions) {
-            formattedPermissions.add(getPermissionFromGroup(permission));
+        int i = 0;
+        for (int remaining = permissionGroupMask; remaining != 0; remaining &= remaining - 1) {
+            formattedPermissions[i++] = getPermissionFromGroup(Integer.numberOfTrailingZeros(remaining));
         }
 
-        return ArrayUtil.listToStringArray(formattedPermissions);
+        return formattedPermissions;
     }
 
     /**
@@ -152,7 +163,7 @@ class PermissionUtil {
      * Therefore, only one of the permissions is needed from the group
      * To be consistent this will return the first permission from a permission group
      */
-    private static String getPermissionFromGroup(@PermissionGroup int permissionGroup) {
+    static String getPermissionFromGroup(@PermissionGroup int permissionGroup) {
         return getPermissionsFromGroup(permissionGroup)[0];
     }
 }
@@ -0,0 +1,122 @@
+package com.coonrade.organizedpermissions;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Fragment;
+import android.app.FragmentManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+
+/**
+ * Headless fragment that runs the permission request inside the caller's activity
+ * This skips launching PermissionsActivity (intent resolution, window creation and theme inflation)
+ * so the system dialog comes up sooner
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class PermissionsFragment extends Fragment implements PermissionRequestFlow.Host {
+
+    private static final String TAG = "com.coonrade.organizedpermissions.PermissionsFragment";
+
+    // Retained through configuration changes, so the request only holds the application context
+    // and dialogs always get the current activity from getActivity()
+    private PermissionRequest request;
+    private PermissionRequestFlow flow;
+
+    /**
+     * @return true if the request could be attached to the activity
+     * false if the activity can't take a fragment anymore and PermissionsActivity has to be used instead
+     */
+    static boolean start(Activity activity, PermissionRequest request) {
+        if (activity.isFinishing() || activity.isDestroyed()) {
+            return false;
+        }
+
+        FragmentManager fragmentManager = activity.getFragmentManager();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && fragmentManager.isStateSaved()) {
+            return false;
+        }
+
+        PermissionsFragment fragment = new PermissionsFragment();
+        fragment.request = request.withApplicationContext();
+
+        try {
+            fragmentManager.beginTransaction().add(fragment, TAG).commitAllowingStateLoss();
+            return true;
+        } catch (IllegalStateException e) {
+            // The activity is being torn down
+            return false;
+        }
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        // Keep the request going through configuration changes
+        setRetainInstance(true);
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+
+        if (flow != null) {
+            // Retained through a configuration change, the dialogs went away with the old activity
+            flow.restore(flow.getState());
+        } else if (request != null) {
+            flow = new PermissionRequestFlow(this, request);
+            flow.start();
+        } else {
+            // Recreated by the system after the process was killed, the listener is gone with the old process
+            finishFlow();
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        if (flow != null) {
+            flow.onRequestPermissionsResult(permissions, grantResults);
+        }
+    }
+
+    @Override
+    public Activity getHostActivity() {
+        return getActivity();
+    }
+
+    @Override
+    public void setBackgroundDimEnabled(boolean enabled) {
+        // The caller's activity is already on screen, there is no dim to change
+    }
+
+    @Override
+    public void finishFlow() {
+        FragmentManager fragmentManager = getFragmentManager();
+
+        if (fragmentManager != null) {
+            fragmentManager.beginTransaction().remove(this).commitAllowingStateLoss();
+        }
+    }
+
+    @Override
+    public void onDetach() {
+        super.onDetach();
+
+        // The activity is going away (also for configuration changes), its dialogs can't stay
+        if (flow != null) {
+            flow.dismissDialogs();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        if (flow != null) {
+            flow.dismissDialogs();
+            flow.onHostDestroyed();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.coonrade.organizedpermissions;
+
+import android.content.Context;
+import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Immutable permission request returned by OrganizedPermissions.build()
+ * Permission groups, manifest validation and dialog settings are worked out once
+ * so check() can be called as often as needed at almost no cost
+ * Safe to share and check from any thread, callbacks for requests that need the user come on the main thread
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PreparedPermissionRequest {
+
+    private static final int DEFAULT_REQUEST_CODE = 0;
+
+    private static final String ERROR_MESSAGE_MISSING_PERMISSIONS_IN_MANIFEST = "Permission(s) are missing in the manifest";
+
+    // Outcome of looking at the manifest and grant state, before anything is shown or called back
+    static final int DECISION_GRANTED = 0;
+    static final int DECISION_REQUEST = 1;
+    static final int DECISION_ERROR = 2;
+
+    // Request with every setting resolved, only the request code changes between checks
+    private final PermissionRequest request;
+
+    // Set once the manifest was found to have every permission group, failed lookups are retried
+    // Done on the first check instead of in build() so that checkAsync() keeps it off the caller's thread
+    // Racing checks would only come to the same answer, the flag is volatile so a result from checkAsync() is seen everywhere
+    private volatile boolean manifestValid;
+
+    PreparedPermissionRequest(PermissionRequest request) {
+        this(request, false);
+    }
+
+    private PreparedPermissionRequest(PermissionRequest request, boolean manifestValid) {
+        this.request = request;
+        this.manifestValid = manifestValid;
+
+        // Formats the permissions now instead of on the first request
+        request.permissionGroups.getPermissions();
+    }
+
+    @AnyThread
+    @SuppressWarnings("unused")
+    public void check() {
+        check(DEFAULT_REQUEST_CODE);
+    }
+
+    @AnyThread
+    @SuppressWarnings("unused")
+    public void check(int requestCode) {
+        PermissionTrace.beginSection("OrganizedPermissions.check");
+
+        try {
+            long checkStartNanos = PermissionMetrics.current() != null ? System.nanoTime() : 0;
+            dispatch(requestCode, decide(requestCode), checkStartNanos);
+        } finally {
+            PermissionTrace.endSection();
+        }
+    }
+
+    /**
+     * Looks at the manifest and the grant state on the executor
+     * and only comes back to the main thread to call the listener or to request permissions
+     * Use this from frame critical code so that no system call happens on the main thread
+     */
+    @AnyThread
+    @SuppressWarnings("unused")
+    public void checkAsync(Executor executor) {
+        checkAsync(DEFAULT_REQUEST_CODE, executor);
+    }
+
+    @AnyThread
+    @SuppressWarnings("unused")
+    public void checkAsync(final int requestCode, Executor executor) {
+        final long checkStartNanos = PermissionMetrics.current() != null ? System.nanoTime() : 0;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int decision = decide(requestCode);
+
+                MainThreadExecutor.INSTANCE.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch(requestCode, decision, checkStartNanos);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Same as check() but the outcome is also given as a future
+     * Callbacks added to the future without an executor run on the main thread
+     */
+    @AnyThread
+    @SuppressWarnings("unused")
+    public PermissionFuture checkFuture() {
+        return checkFuture(DEFAULT_REQUEST_CODE, MainThreadExecutor.INSTANCE);
+    }
+
+    @AnyThread
+    @SuppressWarnings("unused")
+    public PermissionFuture checkFuture(Executor executor) {
+        return checkFuture(DEFAULT_REQUEST_CODE, executor);
+    }
+
+    @AnyThread
+    @SuppressWarnings("unused")
+    public PermissionFuture checkFuture(int requestCode, Executor executor) {
+        PermissionFuture future = new PermissionFuture(executor, requestCode);
+
+        // The listener of this request still gets every callback, the future listens in between
+        new PreparedPermissionRequest(request.withListener(
+                future.createListener(request.permissionListener, request.permissionGroups)), manifestValid)
+                .check(requestCode);
+
+        return future;
+    }
+
+    @SuppressWarnings("unused")
+    public PermissionGroupSet getPermissionGroups() {
+        return request.permissionGroups;
+    }
+
+    /**
+     * Everything that can call into the system happens here
+     */
+    private int decide(int requestCode) {
+        int decision = decide(request.context, request.permissionGroups, requestCode, manifestValid);
+
+        // Only a successful manifest lookup is kept, a failed one is tried again on the next check
+        if (decision != DECISION_ERROR) {
+            manifestValid = true;
+        }
+
+        return decision;
+    }
+
+    /**
+     * Also used by OrganizedPermissions.check() so that granted groups are answered without building a request
+     * @param manifestValid true if the permission groups are known to be in the manifest
+     */
+    static int decide(Context context, PermissionGroupSet permissionGroups, int requestCode, boolean manifestValid) {
+        PermissionJournal journal = PermissionJournal.current();
+        if (journal != null) {
+            journal.record(PermissionJournal.EVENT_CHECK, requestCode, permissionGroups.getMask());
+        }
+
+        // Pre Marshmallow android version, doesn't have runtime permissions
+        if (!PermissionUtil.isRuntimePermissionsEnabled()) {
+            return DECISION_GRANTED;
+        }
+
+        PermissionTrace.beginSection("OrganizedPermissions.decide");
+
+        try {
+            return decideWithRuntimePermissions(context, permissionGroups, requestCode, manifestValid);
+        } finally {
+            PermissionTrace.endSection();
+        }
+    }
+
+    private static int decideWithRuntimePermissions(Context context, PermissionGroupSet permissionGroups,
+                                                    int requestCode, boolean manifestValid) {
+        PermissionMetrics metrics = PermissionMetrics.current();
+        long startNanos = 0;
+
+        if (metrics != null) {
+            metrics.increment(requestCode, PermissionMetrics.COUNTER_CHECKS);
+            startNanos = System.nanoTime();
+        }
+
+        // Check to make sure each permission group has at least one permission in the manifest
+        // If that's not the case then the check gives an error to avoid strange runtime bugs
+        if (!manifestValid && !PermissionUtil.arePermissionGroupsInManifest(context, permissionGroups)) {
+            return DECISION_ERROR;
+        }
+
+        if (metrics != null) {
+            long nowNanos = System.nanoTime();
+            metrics.recordTime(requestCode, PermissionMetrics.TIMER_MANIFEST_LOOKUP, nowNanos - startNanos);
+            startNanos = nowNanos;
+        }
+
+        // Nothing on this path allocates so the already granted case stays cheap
+        boolean granted = GrantStateCache.arePermissionGroupsGranted(context, permissionGroups, metrics, requestCode);
+
+        if (metrics != null) {
+            metrics.recordTime(requestCode, PermissionMetrics.TIMER_GRANT_CHECK, System.nanoTime() - startNanos);
+        }
+
+        return granted ? DECISION_GRANTED : DECISION_REQUEST;
+    }
+
+    void dispatch(int requestCode, int decision, long checkStartNanos) {
+        switch (decision) {
+            case DECISION_GRANTED:
+                permissionsGranted(request.permissionListener, request.permissionGroups, requestCode, checkStartNanos);
+                break;
+            case DECISION_ERROR:
+                permissionsError(requestCode, ERROR_MESSAGE_MISSING_PERMISSIONS_IN_MANIFEST, checkStartNanos);
+                break;
+            case DECISION_REQUEST:
+            default:
+                requestPermissions(requestCode, checkStartNanos);
+                break;
+        }
+    }
+
+    static void permissionsGranted(@Nullable PermissionListener listener, PermissionGroupSet permissionGroups,
+                                   int requestCode, long checkStartNanos) {
+        PermissionMetrics metrics = PermissionMetrics.current();
+        if (metrics != null) {
+            metrics.recordOutcome(requestCode, PermissionMetrics.COUNTER_GRANTED, checkStartNanos);
+        }
+
+        PermissionJournal journal = PermissionJournal.current();
+        if (journal != null) {
+            journal.record(PermissionJournal.EVENT_GRANTED, requestCode, permissionGroups.getMask(),
+                    PermissionResult.granted(permissionGroups));
+        }
+
+        if (listener != null) {
+            listener.onPermissionGroupsResult(requestCode, PermissionResult.granted(permissionGroups));
+            listener.onPermissionsGranted(requestCode);
+        }
+    }
+
+    private void permissionsError(int requestCode, String errorMessage, long checkStartNanos) {
+        PermissionMetrics metrics = PermissionMetrics.current();
+        if (metrics != null) {
+            metrics.recordOutcome(requestCode, PermissionMetrics.COUNTER_ERROR, checkStartNanos);
+        }
+
+        PermissionJournal journal = PermissionJournal.current();
+        if (journal != null) {
+            journal.record(PermissionJournal.EVENT_ERROR, requestCode, request.permissionGroups.getMask());
+        }
+
+        if (request.permissionListener != null)
+            request.permissionListener.onPermissionsError(requestCode, errorMessage);
+    }
+
+    private void requestPermissions(int requestCode, long checkStartNanos) {
+        // Requests made in the same frame are merged into one system request
+        // Requests made while another one is showing wait for it to finish
+        PermissionTrace.beginAsyncSection(PermissionTrace.SLICE_REQUEST, requestCode);
+        PermissionRequestScheduler.schedule(request.withRequestCode(requestCode, checkStartNanos));
+    }
+}
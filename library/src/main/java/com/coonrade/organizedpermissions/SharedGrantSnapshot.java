@@ -0,0 +1,334 @@
+package com.coonrade.organizedpermissions;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Granted permission groups shared between the app's processes through a small memory mapped file
+ * The main process publishes, every other process reads it without locks or system calls
+ * Turned on by overriding the organized_permissions_shared_grant_state bool resource with true
+ *
+ * Revoking a permission kills every process of the app, so the snapshot can be trusted
+ * as long as the process that published it is still alive
+ * The publisher is identified by its pid and its start time so that a reused pid doesn't count
+ * Opening the file happens in the background, checks made before that simply don't use the snapshot
+ *
+ * The file outlives app updates, a file written in another format is ignored until the main process rewrites it
+ */
+final class SharedGrantSnapshot {
+
+    private static final String FILE_NAME = "organized_permissions_grant_state";
+
+    private static final int MAGIC = 0x4F505347;
+
+    // Bumped whenever the layout changes, 1 was the layout without a version word
+    @VisibleForTesting
+    static final int FORMAT_VERSION = 2;
+
+    // Layout of the file, the checksum is a CRC32 of the payload (everything after it)
+    @VisibleForTesting
+    static final int OFFSET_MAGIC = 0, OFFSET_VERSION = 4, OFFSET_SEQUENCE = 8, OFFSET_CHECKSUM = 12;
+    @VisibleForTesting
+    static final int OFFSET_PAYLOAD = 16;
+    private static final int OFFSET_GRANTED_MASK = 16;
+    private static final int OFFSET_WRITER_PID = 20;
+    private static final int OFFSET_WRITER_START_TIME = 24;
+    private static final int OFFSET_PUBLISH_TIME = 32;
+    @VisibleForTesting
+    static final int SIZE = 40;
+
+    private static final Object LOCK = new Object();
+
+    // Set once on the first check, null while the snapshot is turned off, still opening or couldn't be opened
+    private static volatile boolean initialized;
+    @Nullable
+    private static volatile SharedGrantSnapshot instance;
+
+    // No validated snapshot yet, an odd sequence never matches a published one
+    private static final long NOT_VALIDATED = (long) -1 << 32;
+
+    private final ByteBuffer buffer;
+    private final boolean owner;
+    private final int pid;
+    private final long startTime;
+
+    // Sequence number (high bits) and granted groups (low bits) of the last snapshot validated by this process
+    // A validated snapshot stays valid for the rest of this process, a revocation would have killed it
+    // Both are in one long so that readers don't need a lock
+    private volatile long validated = NOT_VALIDATED;
+
+    @VisibleForTesting
+    SharedGrantSnapshot(ByteBuffer buffer, boolean owner, int pid, long startTime) {
+        this.buffer = buffer;
+        this.owner = owner;
+        this.pid = pid;
+        this.startTime = startTime;
+    }
+
+    /**
+     * Opens the snapshot on a background thread the first time it is called
+     * Called on every check so it must stay cheap on the main thread
+     */
+    static void init(Context context) {
+        if (initialized || !claimInit() || !isEnabled(context)) {
+            return;
+        }
+
+        final Context applicationContext = context.getApplicationContext();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                open(applicationContext);
+            }
+        }, "OrganizedPermissions-grant-state");
+
+        thread.start();
+    }
+
+    /**
+     * Same as init() but opens the snapshot on the calling thread, for threads that are in the background already
+     */
+    @WorkerThread
+    static void initOnCurrentThread(Context context) {
+        if (!initialized && claimInit() && isEnabled(context)) {
+            open(context);
+        }
+    }
+
+    private static boolean claimInit() {
+        synchronized (LOCK) {
+            if (initialized) {
+                return false;
+            }
+
+            initialized = true;
+            return true;
+        }
+    }
+
+    private static boolean isEnabled(Context context) {
+        return context.getResources().getBoolean(R.bool.organized_permissions_shared_grant_state);
+    }
+
+    @VisibleForTesting
+    static void initDisabled() {
+        synchronized (LOCK) {
+            instance = null;
+            initialized = true;
+        }
+    }
+
+    @WorkerThread
+    private static void open(Context context) {
+        SharedGrantSnapshot snapshot = map(context);
+
+        if (snapshot == null) {
+            return;
+        }
+
+        instance = snapshot;
+
+        // Groups granted while the file was being opened weren't published yet
+        int grantedGroupMask = GrantStateCache.getGrantedMask();
+        if (snapshot.owner && grantedGroupMask != 0) {
+            snapshot.write(grantedGroupMask);
+        }
+    }
+
+    @Nullable
+    private static SharedGrantSnapshot map(Context context) {
+        int pid = Process.myPid();
+        long startTime = readProcessStartTime(pid);
+
+        if (startTime < 0) {
+            return null;
+        }
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(new File(context.getFilesDir(), FILE_NAME), "rw");
+
+            try {
+                FileChannel channel = file.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+
+                // The mapping stays valid after the file is closed
+                return new SharedGrantSnapshot(buffer, isMainProcess(context), pid, startTime);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Called by the main process whenever it learns about granted permission groups
+     */
+    static void publish(int grantedGroupMask) {
+        SharedGrantSnapshot snapshot = instance;
+
+        if (snapshot != null && snapshot.owner) {
+            snapshot.write(grantedGroupMask);
+        }
+    }
+
+    /**
+     * @return permission groups the main process has seen granted, 0 if there is no snapshot that can be trusted
+     */
+    static int readGrantedMask() {
+        SharedGrantSnapshot snapshot = instance;
+        return snapshot != null && !snapshot.owner ? snapshot.read() : 0;
+    }
+
+    @VisibleForTesting
+    void write(int grantedGroupMask) {
+        synchronized (buffer) {
+            int sequence = buffer.getInt(OFFSET_SEQUENCE);
+
+            // Odd sequence tells readers that a write is in progress
+            buffer.putInt(OFFSET_SEQUENCE, sequence | 1);
+
+            // Granted groups only grow in a process, an older mask written later mustn't hide newer groups
+            if (isCurrentFormat() && buffer.getInt(OFFSET_WRITER_PID) == pid
+                    && buffer.getLong(OFFSET_WRITER_START_TIME) == startTime) {
+                grantedGroupMask |= buffer.getInt(OFFSET_GRANTED_MASK);
+            }
+
+            buffer.putInt(OFFSET_MAGIC, MAGIC);
+            buffer.putInt(OFFSET_VERSION, FORMAT_VERSION);
+            buffer.putInt(OFFSET_GRANTED_MASK, grantedGroupMask);
+            buffer.putInt(OFFSET_WRITER_PID, pid);
+            buffer.putLong(OFFSET_WRITER_START_TIME, startTime);
+            buffer.putLong(OFFSET_PUBLISH_TIME, SystemClock.elapsedRealtime());
+            buffer.putInt(OFFSET_CHECKSUM, checksum(copyPayload()));
+
+            buffer.putInt(OFFSET_SEQUENCE, (sequence | 1) + 1);
+        }
+    }
+
+    @VisibleForTesting
+    int read() {
+        int sequence = buffer.getInt(OFFSET_SEQUENCE);
+
+        if ((sequence & 1) != 0 || !isCurrentFormat()) {
+            return 0;
+        }
+
+        long validated = this.validated;
+        if ((int) (validated >>> 32) == sequence) {
+            return (int) validated;
+        }
+
+        // Fields are parsed from the copy that was checksummed so that they can't change in between
+        byte[] payload = copyPayload();
+        int checksum = buffer.getInt(OFFSET_CHECKSUM);
+
+        // Torn read (the main process was writing at the same time)
+        if (buffer.getInt(OFFSET_SEQUENCE) != sequence || checksum != checksum(payload)) {
+            return 0;
+        }
+
+        ByteBuffer fields = ByteBuffer.wrap(payload).order(buffer.order());
+        int grantedGroupMask = fields.getInt(OFFSET_GRANTED_MASK - OFFSET_PAYLOAD);
+        int writerPid = fields.getInt(OFFSET_WRITER_PID - OFFSET_PAYLOAD);
+        long writerStartTime = fields.getLong(OFFSET_WRITER_START_TIME - OFFSET_PAYLOAD);
+
+        // Written by a process that isn't running anymore, a permission could have been revoked since
+        if (readProcessStartTime(writerPid) != writerStartTime) {
+            return 0;
+        }
+
+        this.validated = ((long) sequence << 32) | (grantedGroupMask & 0xFFFFFFFFL);
+
+        return grantedGroupMask;
+    }
+
+    private boolean isCurrentFormat() {
+        return buffer.getInt(OFFSET_MAGIC) == MAGIC && buffer.getInt(OFFSET_VERSION) == FORMAT_VERSION;
+    }
+
+    private byte[] copyPayload() {
+        byte[] payload = new byte[SIZE - OFFSET_PAYLOAD];
+
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = buffer.get(OFFSET_PAYLOAD + i);
+        }
+
+        return payload;
+    }
+
+    /**
+     * CRC32 instead of something cheaper as it only runs once per published snapshot and process
+     */
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Start time of the process in clock ticks since boot, from /proc/[pid]/stat
+     * @return -1 if the process doesn't exist
+     */
+    @VisibleForTesting
+    static long readProcessStartTime(int pid) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/stat"));
+
+            try {
+                String stat = reader.readLine();
+
+                // The process name is in brackets and can contain spaces, fields are counted after it
+                // Start time is field 22, the 20th one after the name
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return Long.parseLong(fields[19]);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isMainProcess(Context context) {
+        return context.getPackageName().equals(readProcessName());
+    }
+
+    /**
+     * Works on every API level, Application.getProcessName() only exists from API 28
+     */
+    @Nullable
+    private static String readProcessName() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/cmdline"));
+
+            try {
+                String cmdline = reader.readLine();
+                int end = cmdline != null ? cmdline.indexOf('\0') : -1;
+                return end >= 0 ? cmdline.substring(0, end) : cmdline;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -1,62 +1,52 @@
 package com.coonrade.organizedpermissions.util;
 
-import android.app.Activity;
 import android.app.Application;
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Log;
 
+import com.coonrade.organizedpermissions.OrganizedPermissions;
+
+/**
+ * Gets hold of the application context when the process starts so that init() doesn't need a context
+ * Apps that don't want a provider in every process can remove it from the merged manifest
+ * and call OrganizedPermissions.install() instead
+ */
 public class ContextProvider extends ContentProvider
 {
     // Don't worry about memory leak as this will only hold application context
     @SuppressWarnings("all")
-    private static Context context;
+    private static volatile Context context;
 
     // Used to suppress NullPointerException
     @SuppressWarnings("ConstantConditions")
     @Override
     public boolean onCreate() {
-        context = getContext().getApplicationContext();
-        Log.v("CP", "onCreate");
-
-        Application app = (Application) context;
-        app.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
-            @Override
-            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
-
-            }
-            @Override
-            public void onActivityStarted(Activity activity) {
-                Log.v("CP", "onActivityStarted");
-                context = activity.getApplicationContext();
-            }
-
-            @Override
-            public void onActivityResumed(Activity activity) {}
-
-            @Override
-            public void onActivityPaused(Activity activity) {}
+        Context applicationContext = getContext().getApplicationContext();
 
-            @Override
-            public void onActivityStopped(Activity activity) {}
-
-            @Override
-            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
-
-            @Override
-            public void onActivityDestroyed(Activity activity) {}
-        });
+        if (applicationContext instanceof Application) {
+            // Also reads manifest and grant state in the background if the app turned it on
+            OrganizedPermissions.install((Application) applicationContext);
+        } else {
+            install(getContext());
+        }
 
         return false;
     }
 
+    /**
+     * Stores the application context, the provider does this on its own unless it was removed from the manifest
+     */
+    public static void install(@NonNull Context context) {
+        ContextProvider.context = context.getApplicationContext();
+    }
+
     @SuppressWarnings("unused")
+    @Nullable
     public static Context get() {
         return context;
     }
@@ -0,0 +1,116 @@
+package com.coonrade.organizedpermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static com.coonrade.organizedpermissions.SimulatedPermissionSystem.CALL_CHECK_SELF_PERMISSION;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Makes sure that checking permissions that are already granted
+ * neither allocates nor calls into the system, both for the grant lookup and for OrganizedPermissions.check()
+ */
+public class FastPathAllocationTest {
+
+    private static final int ITERATIONS = 100000;
+
+    private SimulatedPermissionSystem system;
+    private SimulatedContext context;
+    private PermissionGroupSet permissionGroups;
+
+    @Before
+    public void setUp() {
+        system = new SimulatedPermissionSystem(PermissionList.LOCATION[0], PermissionList.STORAGE[1]);
+        system.grant(PermissionGroup.LOCATION);
+        system.grant(PermissionGroup.STORAGE);
+        PermissionBackends.set(system);
+        SharedGrantSnapshot.initDisabled();
+
+        // Nothing known from an earlier test, the grant cache starts out empty
+        SimulatedPermissionSystem.restartProcess();
+
+        context = new SimulatedContext();
+        permissionGroups = PermissionGroupSet.of(PermissionGroup.LOCATION, PermissionGroup.STORAGE);
+
+        // First check goes to the system, every check after that is answered from memory
+        assertTrue(grantedFastPath());
+        assertEquals(2, system.getCalls(CALL_CHECK_SELF_PERMISSION));
+    }
+
+    @After
+    public void tearDown() {
+        SimulatedPermissionSystem.restartProcess();
+        PermissionBackends.set(new FrameworkPermissionBackend());
+    }
+
+    @Test
+    public void grantedFastPath_doesNotCallSystem() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertTrue(grantedFastPath());
+        }
+
+        assertEquals(2, system.getCalls(CALL_CHECK_SELF_PERMISSION));
+    }
+
+    @Test
+    public void grantedFastPath_doesNotAllocate() {
+        // Warm up so the measured loop runs compiled code
+        for (int i = 0; i < ITERATIONS; i++) {
+            grantedFastPath();
+        }
+
+        long overhead = allocatedBytes() - allocatedBytes();
+        long before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            grantedFastPath();
+        }
+        long allocated = allocatedBytes() - before + overhead;
+
+        // Anything allocated per check would add up to at least one byte per iteration
+        assertTrue("Allocated " + allocated + " bytes", allocated < ITERATIONS);
+    }
+
+    @Test
+    public void grantedCheck_doesNotAllocate() {
+        final int[] granted = new int[1];
+        OrganizedPermissions permissions = OrganizedPermissions.init(context, permissionGroups)
+                .setListener(new PermissionListener() {
+                    @Override
+                    public void onPermissionsGranted(int requestCode) {
+                        granted[0]++;
+                    }
+                });
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            permissions.check();
+        }
+
+        long overhead = allocatedBytes() - allocatedBytes();
+        long before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            permissions.check();
+        }
+        long allocated = allocatedBytes() - before + overhead;
+
+        assertEquals(2 * ITERATIONS, granted[0]);
+        assertEquals(2, system.getCalls(CALL_CHECK_SELF_PERMISSION));
+        assertTrue("Allocated " + allocated + " bytes", allocated < ITERATIONS);
+    }
+
+    /**
+     * Same decision OrganizedPermissions.checkPermissions() makes before calling onPermissionsGranted()
+     */
+    private boolean grantedFastPath() {
+        return PermissionUtil.arePermissionGroupsInManifest(context, permissionGroups)
+                && PermissionUtil.arePermissionGroupsGranted(context, permissionGroups);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
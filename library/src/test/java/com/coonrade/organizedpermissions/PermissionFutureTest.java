@@ -0,0 +1,292 @@
+package com.coonrade.organizedpermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.coonrade.organizedpermissions.SimulatedPermissionSystem.ANSWER_GRANT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Completion, cancellation and combinators of PermissionFuture against a simulated permission system
+ */
+public class PermissionFutureTest {
+
+    private static final int RACES = 10000;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private SimulatedPermissionSystem system;
+    private SimulatedContext context;
+
+    @Before
+    public void setUp() {
+        system = new SimulatedPermissionSystem(PermissionList.LOCATION[0], PermissionList.CAMERA[0]);
+        PermissionBackends.set(system);
+        SharedGrantSnapshot.initDisabled();
+        SimulatedPermissionSystem.restartProcess();
+
+        context = new SimulatedContext();
+    }
+
+    @After
+    public void tearDown() {
+        system.runUntilIdle();
+        SimulatedPermissionSystem.restartProcess();
+        PermissionBackends.set(new FrameworkPermissionBackend());
+    }
+
+    @Test
+    public void cancelRacingComplete_exactlyOneWins() throws Exception {
+        final PermissionResult result = PermissionResult.granted(PermissionGroupSet.of(PermissionGroup.CAMERA));
+
+        for (int i = 0; i < RACES; i++) {
+            final PermissionFuture future = new PermissionFuture(DIRECT, 0);
+            final CyclicBarrier barrier = new CyclicBarrier(2);
+            final AtomicBoolean completed = new AtomicBoolean();
+
+            Thread completer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(barrier);
+                    completed.set(future.complete(result, null));
+                }
+            });
+            completer.start();
+
+            await(barrier);
+            boolean cancelled = future.cancel(false);
+            completer.join();
+
+            assertTrue("Exactly one of cancel() and complete() wins", cancelled != completed.get());
+            assertTrue(future.isDone());
+            assertEquals(cancelled, future.isCancelled());
+
+            if (cancelled) {
+                assertGetCancelled(future);
+            } else {
+                assertSame(result, future.get());
+            }
+        }
+    }
+
+    @Test
+    public void callbackAddedAfterCompletion_runsRightAway() throws Exception {
+        system.grant(PermissionGroup.LOCATION);
+
+        PermissionFuture future = prepare(PermissionGroup.LOCATION).checkFuture(DIRECT);
+        assertTrue(future.isDone());
+
+        RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+
+        assertEquals(1, callback.results.size());
+        assertTrue(callback.results.get(0).areAllGranted());
+        assertTrue(callback.errors.isEmpty());
+    }
+
+    @Test
+    public void callbackAddedBeforeCompletion_runsOnce() {
+        system.setAnswer(PermissionGroup.CAMERA, ANSWER_GRANT);
+
+        PermissionFuture future = prepare(PermissionGroup.CAMERA).checkFuture(DIRECT);
+        RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+        assertTrue(callback.results.isEmpty());
+
+        system.runUntilIdle();
+        future.cancel(false);
+
+        assertEquals(1, callback.results.size());
+        assertTrue(callback.results.get(0).areAllGranted());
+        assertTrue(callback.errors.isEmpty());
+        assertFalse(future.isCancelled());
+    }
+
+    @Test
+    public void allOf_failsWhenOneFails() throws Exception {
+        system.grant(PermissionGroup.LOCATION);
+
+        // Storage is not in the manifest
+        PermissionFuture joined = PermissionFuture.allOf(DIRECT,
+                prepare(PermissionGroup.LOCATION).checkFuture(DIRECT),
+                prepare(PermissionGroup.STORAGE).checkFuture(DIRECT));
+
+        assertTrue(joined.isDone());
+        assertGetFails(joined, IllegalStateException.class);
+    }
+
+    @Test
+    public void allOf_failsWhenOneIsCancelled() throws Exception {
+        system.grant(PermissionGroup.LOCATION);
+        system.setAnswer(PermissionGroup.CAMERA, ANSWER_GRANT);
+
+        PermissionFuture pending = prepare(PermissionGroup.CAMERA).checkFuture(DIRECT);
+        PermissionFuture joined = PermissionFuture.allOf(DIRECT,
+                prepare(PermissionGroup.LOCATION).checkFuture(DIRECT), pending);
+        assertFalse(joined.isDone());
+
+        pending.cancel(false);
+
+        assertTrue(joined.isDone());
+        assertGetFails(joined, CancellationException.class);
+    }
+
+    @Test
+    public void allOf_mergesResults() throws Exception {
+        system.grant(PermissionGroup.LOCATION);
+        system.setAnswer(PermissionGroup.CAMERA, ANSWER_GRANT);
+
+        PermissionFuture joined = PermissionFuture.allOf(DIRECT,
+                prepare(PermissionGroup.LOCATION).checkFuture(DIRECT),
+                prepare(PermissionGroup.CAMERA).checkFuture(DIRECT));
+        system.runUntilIdle();
+
+        assertEquals(PermissionGroupSet.of(PermissionGroup.LOCATION, PermissionGroup.CAMERA), joined.get().getGranted());
+    }
+
+    @Test
+    public void withTimeout_failsWhenTheCheckTakesTooLong() throws Exception {
+        system.setAnswer(PermissionGroup.CAMERA, ANSWER_GRANT);
+        system.setHostStartDelay(2000);
+
+        PermissionFuture future = prepare(PermissionGroup.CAMERA).checkFuture(DIRECT);
+        PermissionFuture timed = future.withTimeout(1, TimeUnit.SECONDS);
+
+        // Starts the host, which only shows up once the clock passes its delay
+        system.runUntilIdle();
+
+        system.advanceTime(1000);
+
+        assertGetFails(timed, TimeoutException.class);
+        assertFalse(future.isDone());
+
+        // The request keeps going, only the timed future gave up on it
+        system.advanceTime(1000);
+        assertTrue(future.get().areAllGranted());
+    }
+
+    @Test
+    public void withTimeout_keepsResultWhenTheCheckIsInTime() throws Exception {
+        system.grant(PermissionGroup.LOCATION);
+
+        PermissionFuture timed = prepare(PermissionGroup.LOCATION).checkFuture(DIRECT).withTimeout(1, TimeUnit.SECONDS);
+        system.advanceTime(1000);
+
+        assertTrue(timed.get().areAllGranted());
+    }
+
+    @Test
+    public void getAfterCancel_throwsCancellation() throws Exception {
+        system.setAnswer(PermissionGroup.CAMERA, ANSWER_GRANT);
+
+        PermissionFuture future = prepare(PermissionGroup.CAMERA).checkFuture(DIRECT);
+        assertTrue(future.cancel(false));
+
+        assertTrue(future.isCancelled());
+        assertTrue(future.isDone());
+        assertGetCancelled(future);
+
+        // The result that comes in later doesn't replace the cancellation
+        system.runUntilIdle();
+        assertTrue(future.isCancelled());
+        assertFalse(future.cancel(false));
+        assertGetCancelled(future);
+    }
+
+    @Test
+    public void thenCheck_usesTheRequestCodeOfTheChain() throws Exception {
+        system.grant(PermissionGroup.LOCATION);
+        system.grant(PermissionGroup.CAMERA);
+
+        RequestCodeListener listener = new RequestCodeListener();
+        PreparedPermissionRequest next = OrganizedPermissions.init(context, PermissionGroup.CAMERA)
+                .setListener(listener)
+                .build();
+
+        PermissionFuture chained = prepare(PermissionGroup.LOCATION).checkFuture(7, DIRECT).thenCheck(next);
+        assertEquals(PermissionGroupSet.of(PermissionGroup.LOCATION, PermissionGroup.CAMERA), chained.get().getGranted());
+
+        prepare(PermissionGroup.LOCATION).checkFuture(7, DIRECT).thenCheck(next, 9).get();
+
+        assertEquals(2, listener.requestCodes.size());
+        assertEquals(7, (int) listener.requestCodes.get(0));
+        assertEquals(9, (int) listener.requestCodes.get(1));
+    }
+
+    private PreparedPermissionRequest prepare(@PermissionGroup int permissionGroup) {
+        // Dialogs need an activity, which doesn't exist on the JVM
+        return OrganizedPermissions.init(context, permissionGroup)
+                .enableBlockedDialog(false)
+                .build();
+    }
+
+    private static void assertGetCancelled(PermissionFuture future) throws Exception {
+        try {
+            future.get();
+            fail("get() returned after cancel()");
+        } catch (CancellationException expected) {
+            // Expected
+        }
+    }
+
+    private static void assertGetFails(PermissionFuture future, Class<? extends Throwable> cause) throws Exception {
+        try {
+            future.get();
+            fail("get() returned instead of failing with " + cause.getSimpleName());
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), cause.isInstance(e.getCause()));
+        }
+    }
+
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static class RecordingCallback extends PermissionFuture.Callback {
+        final List<PermissionResult> results = new ArrayList<>();
+        final List<Throwable> errors = new ArrayList<>();
+
+        @Override
+        public void onResult(PermissionResult result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            errors.add(error);
+        }
+    }
+
+    private static class RequestCodeListener extends PermissionListener {
+        final List<Integer> requestCodes = new ArrayList<>();
+
+        @Override
+        public void onPermissionsGranted(int requestCode) {
+            requestCodes.add(requestCode);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.coonrade.organizedpermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionJournalTest {
+
+    private static final int REQUEST_CODE = 5;
+
+    private SimulatedPermissionSystem system;
+    private SimulatedContext context;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        system = new SimulatedPermissionSystem(PermissionList.LOCATION[0], PermissionList.CAMERA[0]);
+        PermissionBackends.set(system);
+        SharedGrantSnapshot.initDisabled();
+        SimulatedPermissionSystem.restartProcess();
+
+        context = new SimulatedContext();
+        file = File.createTempFile("journal", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        PermissionJournal.disable();
+        system.runUntilIdle();
+        SimulatedPermissionSystem.restartProcess();
+        PermissionBackends.set(new FrameworkPermissionBackend());
+        file.delete();
+    }
+
+    @Test
+    public void disabled_dumpsNothing() {
+        assertFalse(PermissionJournal.dump(file));
+    }
+
+    @Test
+    public void blockedRequest_journaledStepByStep() throws IOException {
+        PermissionJournal.enable();
+        system.setAnswer(PermissionGroup.CAMERA, SimulatedPermissionSystem.ANSWER_DENY_ALWAYS);
+
+        check(PermissionGroup.CAMERA);
+        system.runUntilIdle();
+
+        List<PermissionJournalReader.Event> events = dump();
+        assertTypes(events, PermissionJournal.EVENT_CHECK, PermissionJournal.EVENT_HOST_STARTED,
+                PermissionJournal.EVENT_FLOW_STARTED, PermissionJournal.EVENT_SYSTEM_REQUEST,
+                PermissionJournal.EVENT_BLOCKED);
+
+        for (PermissionJournalReader.Event event : events) {
+            assertEquals(REQUEST_CODE, event.getRequestCode());
+            assertEquals(PermissionGroupSet.of(PermissionGroup.CAMERA), event.getRequested());
+        }
+
+        PermissionJournalReader.Event outcome = events.get(events.size() - 1);
+        assertEquals(PermissionGroupSet.of(PermissionGroup.CAMERA), outcome.getBlocked());
+        assertTrue(outcome.getGranted().isEmpty());
+        assertEquals(PermissionJournal.HOST_ACTIVITY, events.get(1).getArgument());
+    }
+
+    @Test
+    public void fullRing_keepsTheLatestEvents() throws IOException {
+        PermissionJournal.enable(4);
+        system.grant(PermissionGroup.LOCATION);
+
+        // Every granted check is a check event and an outcome event
+        for (int i = 0; i < 10; i++) {
+            check(PermissionGroup.LOCATION);
+        }
+
+        List<PermissionJournalReader.Event> events = dump();
+        assertTypes(events, PermissionJournal.EVENT_CHECK, PermissionJournal.EVENT_GRANTED,
+                PermissionJournal.EVENT_CHECK, PermissionJournal.EVENT_GRANTED);
+        assertEquals(16, events.get(0).getSequence());
+        assertEquals(PermissionGroupSet.of(PermissionGroup.LOCATION), events.get(3).getGranted());
+    }
+
+    private void check(@PermissionGroup int permissionGroup) {
+        OrganizedPermissions.init(context, permissionGroup)
+                .enableBlockedDialog(false)
+                .check(REQUEST_CODE);
+    }
+
+    private List<PermissionJournalReader.Event> dump() throws IOException {
+        assertTrue(PermissionJournal.dump(file));
+        return PermissionJournalReader.read(new FileInputStream(file));
+    }
+
+    private static void assertTypes(List<PermissionJournalReader.Event> events, int... types) {
+        assertEquals(events.toString(), types.length, events.size());
+
+        for (int i = 0; i < types.length; i++) {
+            assertEquals(events.toString(), PermissionJournalReader.getEventName(types[i]),
+                    PermissionJournalReader.getEventName(events.get(i).getType()));
+        }
+    }
+}
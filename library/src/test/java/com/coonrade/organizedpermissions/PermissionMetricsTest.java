@@ -0,0 +1,137 @@
+package com.coonrade.organizedpermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionMetricsTest {
+
+    private static final int GRANTED_REQUEST_CODE = 7;
+    private static final int REQUESTED_REQUEST_CODE = 8;
+    private static final int HISTORY_REQUEST_CODE = 9;
+
+    private SimulatedPermissionSystem system;
+    private SimulatedContext context;
+
+    @Before
+    public void setUp() {
+        system = new SimulatedPermissionSystem(PermissionList.LOCATION[0], PermissionList.CAMERA[0]);
+        PermissionBackends.set(system);
+        SharedGrantSnapshot.initDisabled();
+        SimulatedPermissionSystem.restartProcess();
+
+        context = new SimulatedContext();
+        PermissionMetrics.enable();
+        PermissionMetrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        PermissionMetrics.disable();
+        system.runUntilIdle();
+        SimulatedPermissionSystem.restartProcess();
+        PermissionBackends.set(new FrameworkPermissionBackend());
+    }
+
+    @Test
+    public void grantedChecks_recordedForTheirRequestCode() {
+        system.grant(PermissionGroup.LOCATION);
+
+        for (int i = 0; i < 100; i++) {
+            check(GRANTED_REQUEST_CODE, PermissionGroup.LOCATION);
+        }
+
+        PermissionMetrics.RequestMetrics metrics = find(GRANTED_REQUEST_CODE);
+        assertEquals(100, metrics.getCounter(PermissionMetrics.COUNTER_CHECKS));
+        assertEquals(100, metrics.getCounter(PermissionMetrics.COUNTER_GRANTED));
+        assertEquals(1, metrics.getCounter(PermissionMetrics.COUNTER_CHECK_SELF_PERMISSION_CALLS));
+        assertEquals(0, metrics.getCounter(PermissionMetrics.COUNTER_ACTIVITY_STARTS));
+        assertEquals(100, metrics.getTimerCount(PermissionMetrics.TIMER_DECISION));
+        assertEquals(100, sum(metrics.getTimerBuckets(PermissionMetrics.TIMER_GRANT_CHECK)));
+    }
+
+    @Test
+    public void requestedChecks_recordHostAndOutcome() {
+        system.setAnswer(PermissionGroup.CAMERA, SimulatedPermissionSystem.ANSWER_DENY_ALWAYS);
+
+        check(REQUESTED_REQUEST_CODE, PermissionGroup.CAMERA);
+        system.runUntilIdle();
+
+        PermissionMetrics.RequestMetrics metrics = find(REQUESTED_REQUEST_CODE);
+        assertEquals(1, metrics.getCounter(PermissionMetrics.COUNTER_ACTIVITY_STARTS));
+        assertEquals(1, metrics.getCounter(PermissionMetrics.COUNTER_BLOCKED));
+        assertEquals(1, metrics.getTimerCount(PermissionMetrics.TIMER_HOST_TO_SYSTEM_REQUEST));
+        assertEquals(1, metrics.getTimerCount(PermissionMetrics.TIMER_DECISION));
+        assertTrue(metrics.getCounter(PermissionMetrics.COUNTER_RATIONALE_CALLS) > 0);
+    }
+
+    @Test
+    public void checksAnsweredFromHistory_countTheirSystemCalls() {
+        system.setAnswer(PermissionGroup.LOCATION, SimulatedPermissionSystem.ANSWER_DENY_ALWAYS);
+        system.setAnswer(PermissionGroup.CAMERA, SimulatedPermissionSystem.ANSWER_DENY_ALWAYS);
+        check(REQUESTED_REQUEST_CODE, PermissionGroup.LOCATION, PermissionGroup.CAMERA);
+        system.runUntilIdle();
+
+        // The new process only knows about the blocked groups from the history
+        // The check stops at the first denied group, the history asks about the other one
+        SimulatedPermissionSystem.restartProcess();
+        check(HISTORY_REQUEST_CODE, PermissionGroup.LOCATION, PermissionGroup.CAMERA);
+
+        PermissionMetrics.RequestMetrics metrics = find(HISTORY_REQUEST_CODE);
+        assertEquals(1, metrics.getCounter(PermissionMetrics.COUNTER_BLOCKED));
+        assertEquals(0, metrics.getCounter(PermissionMetrics.COUNTER_ACTIVITY_STARTS));
+        assertEquals(2, metrics.getCounter(PermissionMetrics.COUNTER_CHECK_SELF_PERMISSION_CALLS));
+    }
+
+    @Test
+    public void requestCodesBeyondTheLimit_addedUpInOverflow() {
+        system.grant(PermissionGroup.LOCATION);
+
+        for (int requestCode = 0; requestCode < PermissionMetrics.MAX_REQUEST_CODES + 10; requestCode++) {
+            check(requestCode, PermissionGroup.LOCATION);
+        }
+
+        List<PermissionMetrics.RequestMetrics> snapshot = PermissionMetrics.snapshot();
+        assertEquals(PermissionMetrics.MAX_REQUEST_CODES + 1, snapshot.size());
+
+        long granted = 0;
+        for (PermissionMetrics.RequestMetrics metrics : snapshot) {
+            granted += metrics.getCounter(PermissionMetrics.COUNTER_GRANTED);
+
+            if (metrics.isOverflow()) {
+                assertEquals(10, metrics.getCounter(PermissionMetrics.COUNTER_GRANTED));
+            }
+        }
+
+        assertEquals(PermissionMetrics.MAX_REQUEST_CODES + 10, granted);
+    }
+
+    private void check(int requestCode, @PermissionGroup int permissionGroup, @PermissionGroup int... permissionGroups) {
+        OrganizedPermissions.init(context, permissionGroup, permissionGroups)
+                .enableBlockedDialog(false)
+                .check(requestCode);
+    }
+
+    private static PermissionMetrics.RequestMetrics find(int requestCode) {
+        for (PermissionMetrics.RequestMetrics metrics : PermissionMetrics.snapshot()) {
+            if (!metrics.isOverflow() && metrics.getRequestCode() == requestCode) {
+                return metrics;
+            }
+        }
+
+        throw new AssertionError("No metrics for request code " + requestCode);
+    }
+
+    private static long sum(long[] buckets) {
+        long sum = 0;
+        for (long bucket : buckets) {
+            sum += bucket;
+        }
+        return sum;
+    }
+}
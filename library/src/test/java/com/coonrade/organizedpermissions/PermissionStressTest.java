@@ -0,0 +1,359 @@
+package com.coonrade.organizedpermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.coonrade.organizedpermissions.SimulatedPermissionSystem.ANSWER_DENY_ALWAYS;
+import static com.coonrade.organizedpermissions.SimulatedPermissionSystem.ANSWER_GRANT;
+import static com.coonrade.organizedpermissions.SimulatedPermissionSystem.CALL_CHECK_SELF_PERMISSION;
+import static com.coonrade.organizedpermissions.SimulatedPermissionSystem.CALL_GET_REQUESTED_PERMISSIONS;
+import static com.coonrade.organizedpermissions.SimulatedPermissionSystem.CALL_REQUEST_PERMISSIONS;
+import static com.coonrade.organizedpermissions.SimulatedPermissionSystem.CALL_START_ACTIVITY_HOST;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fires thousands of checks at a simulated permission system
+ * and counts how many system calls and activity launches each scenario costs
+ */
+public class PermissionStressTest {
+
+    private static final int CHECKS = 10000;
+    private static final int THREADS = 8;
+
+    private SimulatedPermissionSystem system;
+    private SimulatedContext context;
+    private CountingListener listener;
+
+    @Before
+    public void setUp() {
+        system = new SimulatedPermissionSystem(PermissionList.LOCATION[0], PermissionList.STORAGE[0],
+                PermissionList.CAMERA[0]);
+        PermissionBackends.set(system);
+        SharedGrantSnapshot.initDisabled();
+        SimulatedPermissionSystem.restartProcess();
+
+        context = new SimulatedContext();
+        listener = new CountingListener();
+    }
+
+    @After
+    public void tearDown() {
+        system.runUntilIdle();
+        SimulatedPermissionSystem.restartProcess();
+        PermissionBackends.set(new FrameworkPermissionBackend());
+    }
+
+    @Test
+    public void grantedChecks_askSystemOncePerGroup() {
+        system.grant(PermissionGroup.LOCATION);
+        system.grant(PermissionGroup.STORAGE);
+
+        for (int i = 0; i < CHECKS; i++) {
+            check(PermissionGroup.LOCATION, PermissionGroup.STORAGE);
+        }
+
+        assertEquals(CHECKS, listener.granted.get());
+        assertEquals(1, system.getCalls(CALL_GET_REQUESTED_PERMISSIONS));
+        assertEquals(2, system.getCalls(CALL_CHECK_SELF_PERMISSION));
+        assertEquals(0, system.getCalls(CALL_START_ACTIVITY_HOST));
+    }
+
+    @Test
+    public void checksInOneFrame_shareOneRequest() {
+        system.setAnswer(PermissionGroup.LOCATION, ANSWER_GRANT);
+        system.setAnswer(PermissionGroup.CAMERA, ANSWER_GRANT);
+
+        for (int i = 0; i < CHECKS; i++) {
+            check(i % 2 == 0 ? PermissionGroup.LOCATION : PermissionGroup.CAMERA);
+        }
+
+        assertEquals(0, listener.granted.get());
+        system.runUntilIdle();
+
+        assertEquals(CHECKS, listener.granted.get());
+        assertEquals(1, system.getCalls(CALL_START_ACTIVITY_HOST));
+        assertEquals(1, system.getCalls(CALL_REQUEST_PERMISSIONS));
+
+        // Granted groups are answered from memory from now on
+        long checkSelfPermissionCalls = system.getCalls(CALL_CHECK_SELF_PERMISSION);
+
+        for (int i = 0; i < CHECKS; i++) {
+            check(PermissionGroup.LOCATION, PermissionGroup.CAMERA);
+        }
+
+        assertEquals(2 * CHECKS, listener.granted.get());
+        assertEquals(checkSelfPermissionCalls, system.getCalls(CALL_CHECK_SELF_PERMISSION));
+        assertEquals(1, system.getCalls(CALL_START_ACTIVITY_HOST));
+    }
+
+    @Test
+    public void blockedGroups_answeredWithoutActivityAfterRestart() {
+        system.setAnswer(PermissionGroup.CAMERA, ANSWER_DENY_ALWAYS);
+
+        check(PermissionGroup.CAMERA);
+        system.runUntilIdle();
+
+        assertEquals(1, listener.blocked.get());
+        assertEquals(1, system.getCalls(CALL_START_ACTIVITY_HOST));
+
+        SimulatedPermissionSystem.restartProcess();
+
+        for (int i = 0; i < CHECKS; i++) {
+            check(PermissionGroup.CAMERA);
+        }
+        system.runUntilIdle();
+
+        assertEquals(CHECKS + 1, listener.blocked.get());
+        assertEquals(1, system.getCalls(CALL_START_ACTIVITY_HOST));
+        assertEquals(1, system.getCalls(CALL_REQUEST_PERMISSIONS));
+    }
+
+    @Test
+    public void oldBlockedHistory_askedForAgain() {
+        system.setAnswer(PermissionGroup.CAMERA, ANSWER_DENY_ALWAYS);
+
+        check(PermissionGroup.CAMERA);
+        system.runUntilIdle();
+
+        // The user could have reset the permission to "ask" in the settings app since
+        ageBlockedHistory(PermissionGroup.CAMERA, 0);
+        SimulatedPermissionSystem.restartProcess();
+
+        check(PermissionGroup.CAMERA);
+        system.runUntilIdle();
+
+        assertEquals(2, listener.blocked.get());
+        assertEquals(2, system.getCalls(CALL_REQUEST_PERMISSIONS));
+    }
+
+    @Test
+    public void newlyBlockedGroup_doesNotRenewOldBlockedGroups() throws InterruptedException {
+        system.setAnswer(PermissionGroup.CAMERA, ANSWER_DENY_ALWAYS);
+        system.setAnswer(PermissionGroup.LOCATION, ANSWER_DENY_ALWAYS);
+
+        check(PermissionGroup.CAMERA);
+        system.runUntilIdle();
+
+        // Camera is about to expire when location gets blocked
+        ageBlockedHistory(PermissionGroup.CAMERA, 200);
+        SimulatedPermissionSystem.restartProcess();
+
+        check(PermissionGroup.LOCATION);
+        system.runUntilIdle();
+        assertEquals(2, system.getCalls(CALL_REQUEST_PERMISSIONS));
+
+        Thread.sleep(400);
+        SimulatedPermissionSystem.restartProcess();
+
+        // Blocking location said nothing about camera, which is too old to trust by now
+        check(PermissionGroup.CAMERA);
+        system.runUntilIdle();
+
+        assertEquals(3, listener.blocked.get());
+        assertEquals(3, system.getCalls(CALL_REQUEST_PERMISSIONS));
+
+        // Location was blocked just now, it is answered from the history
+        check(PermissionGroup.LOCATION);
+        system.runUntilIdle();
+
+        assertEquals(4, listener.blocked.get());
+        assertEquals(3, system.getCalls(CALL_REQUEST_PERMISSIONS));
+    }
+
+    @Test
+    public void hostDestroyedDuringBlockedDialog_keepsBlockedOutcome() {
+        system.setAnswer(PermissionGroup.CAMERA, ANSWER_DENY_ALWAYS);
+
+        OrganizedPermissions.init(context, PermissionGroup.CAMERA)
+                .setListener(listener)
+                .check();
+        system.runUntilIdle();
+
+        assertEquals(1, listener.blocked.get());
+        assertTrue(system.isDialogShowing());
+
+        system.destroyHost();
+        system.runUntilIdle();
+
+        assertFalse(system.isDialogShowing());
+        assertEquals(1, listener.results.get());
+        assertEquals(1, listener.blocked.get());
+        assertEquals(0, listener.denied.get());
+
+        // The scheduler let go of the request, the next one starts a host of its own
+        system.setAnswer(PermissionGroup.LOCATION, ANSWER_GRANT);
+        check(PermissionGroup.LOCATION);
+        system.runUntilIdle();
+
+        assertEquals(1, listener.granted.get());
+        assertEquals(2, system.getCalls(CALL_START_ACTIVITY_HOST));
+    }
+
+    @Test
+    public void failedHostStart_deniesAndLetsLaterRequestsThrough() {
+        system.setAnswer(PermissionGroup.CAMERA, ANSWER_GRANT);
+        system.failHostStarts(true);
+
+        check(PermissionGroup.CAMERA);
+        system.runUntilIdle();
+
+        assertEquals(1, listener.denied.get());
+        assertEquals(0, system.getCalls(CALL_REQUEST_PERMISSIONS));
+
+        system.failHostStarts(false);
+
+        check(PermissionGroup.CAMERA);
+        system.runUntilIdle();
+
+        assertEquals(1, listener.granted.get());
+        assertEquals(2, system.getCalls(CALL_START_ACTIVITY_HOST));
+    }
+
+    @Test
+    public void hostStartingTooLate_deniesAndIsJournaled() throws IOException {
+        PermissionJournal.enable();
+        system.setAnswer(PermissionGroup.CAMERA, ANSWER_GRANT);
+        system.setHostStartDelay(PermissionRequestScheduler.HOST_START_TIMEOUT_MILLIS + 1000);
+
+        check(PermissionGroup.CAMERA);
+        system.runUntilIdle();
+        assertEquals(0, listener.denied.get());
+
+        system.advanceTime(PermissionRequestScheduler.HOST_START_TIMEOUT_MILLIS);
+        assertEquals(1, listener.denied.get());
+
+        // The late host ends its flow without asking and without a second outcome
+        system.advanceTime(1000);
+        assertEquals(1, listener.denied.get());
+        assertEquals(0, listener.granted.get());
+        assertEquals(0, system.getCalls(CALL_REQUEST_PERMISSIONS));
+
+        File file = File.createTempFile("journal", ".bin");
+        try {
+            assertTrue(PermissionJournal.dump(file));
+            List<Integer> types = new ArrayList<>();
+            for (PermissionJournalReader.Event event : PermissionJournalReader.read(new FileInputStream(file))) {
+                types.add(event.getType());
+            }
+
+            int timedOut = types.indexOf(PermissionJournal.EVENT_HOST_TIMED_OUT);
+            int denied = types.indexOf(PermissionJournal.EVENT_DENIED);
+            int lost = types.indexOf(PermissionJournal.EVENT_HOST_LOST);
+            assertTrue(types.toString(), timedOut >= 0 && timedOut < denied && denied < lost);
+        } finally {
+            PermissionJournal.disable();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void checksFromManyThreads_shareOneRequest() throws InterruptedException {
+        system.grant(PermissionGroup.STORAGE);
+        system.setAnswer(PermissionGroup.LOCATION, ANSWER_GRANT);
+
+        runOnThreads(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < CHECKS; i++) {
+                    check(i % 2 == 0 ? PermissionGroup.STORAGE : PermissionGroup.LOCATION);
+                }
+            }
+        });
+
+        // Only the checks of the granted group were answered, the rest wait for the main thread
+        assertEquals(THREADS * CHECKS / 2, listener.granted.get());
+        system.runUntilIdle();
+
+        assertEquals(THREADS * CHECKS, listener.granted.get());
+        assertEquals(1, system.getCalls(CALL_START_ACTIVITY_HOST));
+
+        // Racing threads can each ask about a group before the first answer is stored, but never more than that
+        assertTrue(system.getCalls(CALL_CHECK_SELF_PERMISSION) <= 2 * THREADS);
+    }
+
+    @Test
+    public void slowSystem_doesNotSlowDownGrantedChecks() {
+        system.grant(PermissionGroup.LOCATION);
+        system.setLatency(CALL_CHECK_SELF_PERMISSION, TimeUnit.MILLISECONDS.toNanos(5));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < CHECKS; i++) {
+            check(PermissionGroup.LOCATION);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // Asking the system every time would take CHECKS * 5ms
+        assertEquals(1, system.getCalls(CALL_CHECK_SELF_PERMISSION));
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis < CHECKS);
+    }
+
+    /**
+     * Moves the time the group was blocked back so that it expires in expiresInMillis
+     */
+    private void ageBlockedHistory(@PermissionGroup int permissionGroup, long expiresInMillis) {
+        context.getSharedPreferences(PermissionHistory.PREFERENCES_NAME, 0).edit()
+                .putLong(PermissionHistory.getBlockedTimeKey(permissionGroup),
+                        System.currentTimeMillis() - PermissionHistory.BLOCKED_MAX_AGE_MILLIS + expiresInMillis)
+                .apply();
+    }
+
+    private void check(@PermissionGroup int permissionGroup, @PermissionGroup int... permissionGroups) {
+        // Dialogs need an activity, which doesn't exist on the JVM
+        OrganizedPermissions.init(context, permissionGroup, permissionGroups)
+                .enableBlockedDialog(false)
+                .setListener(listener)
+                .check();
+    }
+
+    private static void runOnThreads(Runnable runnable) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(runnable);
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static class CountingListener extends PermissionListener {
+        final AtomicInteger granted = new AtomicInteger();
+        final AtomicInteger denied = new AtomicInteger();
+        final AtomicInteger blocked = new AtomicInteger();
+        final AtomicInteger results = new AtomicInteger();
+
+        @Override
+        public void onPermissionGroupsResult(int requestCode, PermissionResult result) {
+            results.incrementAndGet();
+        }
+
+        @Override
+        public void onPermissionsGranted(int requestCode) {
+            granted.incrementAndGet();
+        }
+
+        @Override
+        public void onPermissionsDenied(int requestCode) {
+            denied.incrementAndGet();
+        }
+
+        @Override
+        public void onPermissionsBlocked(int requestCode) {
+            blocked.incrementAndGet();
+        }
+    }
+}
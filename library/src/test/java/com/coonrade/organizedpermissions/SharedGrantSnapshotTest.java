@@ -0,0 +1,91 @@
+package com.coonrade.organizedpermissions;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads and writes of the snapshot over a plain buffer standing in for the mapped file
+ * The writer is this JVM's own process so that its start time can be checked against /proc
+ */
+public class SharedGrantSnapshotTest {
+
+    private static final int GRANTED_MASK = (1 << PermissionGroup.CAMERA) | (1 << PermissionGroup.LOCATION);
+
+    private ByteBuffer file;
+    private int pid;
+    private long startTime;
+
+    @Before
+    public void setUp() throws IOException {
+        file = ByteBuffer.allocate(SharedGrantSnapshot.SIZE);
+        pid = Integer.parseInt(new File("/proc/self").getCanonicalFile().getName());
+        startTime = SharedGrantSnapshot.readProcessStartTime(pid);
+        assertTrue(startTime >= 0);
+    }
+
+    @Test
+    public void writtenMask_isReadByOtherProcesses() {
+        owner().write(GRANTED_MASK);
+
+        SharedGrantSnapshot reader = reader();
+        assertEquals(GRANTED_MASK, reader.read());
+
+        // A later publish is seen although the older one was validated already
+        owner().write(1 << PermissionGroup.STORAGE);
+        assertEquals(GRANTED_MASK | (1 << PermissionGroup.STORAGE), reader.read());
+    }
+
+    @Test
+    public void writeInProgress_isNotRead() {
+        owner().write(GRANTED_MASK);
+        file.putInt(SharedGrantSnapshot.OFFSET_SEQUENCE, file.getInt(SharedGrantSnapshot.OFFSET_SEQUENCE) | 1);
+
+        assertEquals(0, reader().read());
+    }
+
+    @Test
+    public void tornPayload_failsTheChecksum() {
+        owner().write(GRANTED_MASK);
+
+        // The payload changed without a new sequence, like a write that raced the read
+        int offset = SharedGrantSnapshot.OFFSET_PAYLOAD;
+        file.put(offset, (byte) (file.get(offset) ^ 1));
+
+        assertEquals(0, reader().read());
+    }
+
+    @Test
+    public void otherFormatVersion_isNotRead() {
+        owner().write(GRANTED_MASK);
+        file.putInt(SharedGrantSnapshot.OFFSET_VERSION, SharedGrantSnapshot.FORMAT_VERSION - 1);
+
+        assertEquals(0, reader().read());
+
+        // The main process takes over a file in another format
+        owner().write(GRANTED_MASK);
+        assertEquals(GRANTED_MASK, reader().read());
+    }
+
+    @Test
+    public void ownerWithOtherStartTime_isNotTrusted() {
+        // Same pid, but a process that was started later and could have seen a revocation
+        new SharedGrantSnapshot(file, true, pid, startTime + 1).write(GRANTED_MASK);
+
+        assertEquals(0, reader().read());
+    }
+
+    private SharedGrantSnapshot owner() {
+        return new SharedGrantSnapshot(file, true, pid, startTime);
+    }
+
+    private SharedGrantSnapshot reader() {
+        return new SharedGrantSnapshot(file, false, pid, startTime);
+    }
+}
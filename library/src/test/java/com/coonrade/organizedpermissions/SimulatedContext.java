@@ -0,0 +1,185 @@
+package com.coonrade.organizedpermissions;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Context for JVM tests with in memory shared preferences
+ * The preferences outlive SimulatedPermissionSystem.restartProcess() like files on a device do
+ */
+class SimulatedContext extends ContextWrapper {
+
+    private final Map<String, MemorySharedPreferences> preferences = new HashMap<>();
+
+    SimulatedContext() {
+        super(null);
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "com.coonrade.organizedpermissions.test";
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        MemorySharedPreferences sharedPreferences = preferences.get(name);
+
+        if (sharedPreferences == null) {
+            sharedPreferences = new MemorySharedPreferences();
+            preferences.put(name, sharedPreferences);
+        }
+
+        return sharedPreferences;
+    }
+
+    private static class MemorySharedPreferences implements SharedPreferences {
+        private final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Nullable
+        @Override
+        public String getString(String key, @Nullable String defValue) {
+            return (String) get(key, defValue);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Nullable
+        @Override
+        public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+            return (Set<String>) get(key, defValues);
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return (Integer) get(key, defValue);
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return (Long) get(key, defValue);
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return (Float) get(key, defValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return (Boolean) get(key, defValue);
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new MemoryEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {}
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {}
+
+        private synchronized Object get(String key, Object defValue) {
+            return values.containsKey(key) ? values.get(key) : defValue;
+        }
+
+        private class MemoryEditor implements Editor {
+            private final Map<String, Object> changes = new HashMap<>();
+            private boolean clear;
+
+            @Override
+            public Editor putString(String key, @Nullable String value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putStringSet(String key, @Nullable Set<String> values) {
+                changes.put(key, values != null ? new HashSet<>(values) : null);
+                return this;
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                changes.put(key, null);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                clear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                synchronized (MemorySharedPreferences.this) {
+                    if (clear) {
+                        values.clear();
+                    }
+
+                    for (Map.Entry<String, Object> change : changes.entrySet()) {
+                        if (change.getValue() == null) {
+                            values.remove(change.getKey());
+                        } else {
+                            values.put(change.getKey(), change.getValue());
+                        }
+                    }
+                }
+
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.coonrade.organizedpermissions;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.pm.PackageManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In memory permission system for JVM tests
+ * Models never asked, denied, blocked and granted permissions, what the user answers to a system request,
+ * how long each kind of call takes and how often it was made
+ *
+ * The thread that creates it plays the main thread, posted work only runs in runUntilIdle()
+ * and delayed work (like the host start timeout) only once advanceTime() moved the clock past it
+ * Hosts started by the library run PermissionRequestFlow against a placeholder activity,
+ * dialogs are only remembered until a test clicks one of their buttons or destroys the host
+ */
+class SimulatedPermissionSystem implements PermissionBackend {
+
+    // Calls that are counted and can be slowed down
+    static final int CALL_GET_REQUESTED_PERMISSIONS = 0;
+    static final int CALL_CHECK_SELF_PERMISSION = 1;
+    static final int CALL_SHOULD_SHOW_RATIONALE = 2;
+    static final int CALL_REQUEST_PERMISSIONS = 3;
+    static final int CALL_START_FRAGMENT_HOST = 4;
+    static final int CALL_START_ACTIVITY_HOST = 5;
+    private static final int CALL_COUNT = 6;
+
+    // What the user answers when the system asks
+    static final int ANSWER_GRANT = 0;
+    static final int ANSWER_DENY = 1;
+    static final int ANSWER_DENY_ALWAYS = 2;
+
+    private static final int STATE_NEVER_ASKED = 0;
+    private static final int STATE_DENIED = 1;
+    private static final int STATE_BLOCKED = 2;
+    private static final int STATE_GRANTED = 3;
+
+    private final String[] manifestPermissions;
+    private final Thread mainThread = Thread.currentThread();
+
+    private final Map<String, Integer> states = new ConcurrentHashMap<>();
+    private final Map<String, Integer> answers = new ConcurrentHashMap<>();
+
+    private final AtomicLongArray calls = new AtomicLongArray(CALL_COUNT);
+    private final long[] latencyNanos = new long[CALL_COUNT];
+
+    // Set when the system refuses to start hosts, for example activity starts from the background
+    private volatile boolean failHostStarts;
+
+    // How long a started host takes to start its flow, like a slow cold start
+    private volatile long hostStartDelayMillis;
+
+    private final Queue<Runnable> mainThreadQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> frameCallbacks = new ConcurrentLinkedQueue<>();
+    private final List<DelayedRunnable> delayedRunnables = new ArrayList<>();
+    private long uptimeMillis;
+
+    // Only touched on the main thread
+    @Nullable
+    private SimulatedHost host;
+    @Nullable
+    private SimulatedDialog dialog;
+
+    SimulatedPermissionSystem(String... manifestPermissions) {
+        this.manifestPermissions = manifestPermissions;
+    }
+
+    /**
+     * Forgets everything the library keeps in memory, like the process was killed and started again
+     * The request history survives as it is persisted
+     */
+    static void restartProcess() {
+        GrantStateCache.reset();
+        PermissionHistory.reset();
+        PermissionUtil.clearManifestIndex();
+        PermissionRequestScheduler.reset();
+    }
+
+    void grant(@PermissionGroup int permissionGroup) {
+        setState(permissionGroup, STATE_GRANTED);
+    }
+
+    void block(@PermissionGroup int permissionGroup) {
+        setState(permissionGroup, STATE_BLOCKED);
+    }
+
+    /**
+     * Sets what the user answers the next time the group is asked for, denying is the default
+     */
+    void setAnswer(@PermissionGroup int permissionGroup, int answer) {
+        for (String permission : PermissionUtil.getPermissionsFromGroup(permissionGroup)) {
+            answers.put(permission, answer);
+        }
+    }
+
+    void failHostStarts(boolean fail) {
+        failHostStarts = fail;
+    }
+
+    /**
+     * @return true while the flow shows a dialog that wasn't clicked or dismissed
+     */
+    boolean isDialogShowing() {
+        return dialog != null;
+    }
+
+    /**
+     * Clicks a button of the dialog that is showing, DialogInterface.BUTTON_POSITIVE or BUTTON_NEGATIVE
+     */
+    void clickDialogButton(int which) {
+        SimulatedDialog clicked = dialog;
+        dialog = null;
+        (which == DialogInterface.BUTTON_POSITIVE ? clicked.positiveListener : clicked.negativeListener)
+                .onClick(clicked, which);
+    }
+
+    /**
+     * Destroys the host of the running flow for good, like the user leaving it or the system reclaiming it
+     */
+    void destroyHost() {
+        PermissionRequestFlow flow = host.flow;
+        host = null;
+        flow.dismissDialogs();
+        flow.onHostDestroyed();
+    }
+
+    void setHostStartDelay(long millis) {
+        hostStartDelayMillis = millis;
+    }
+
+    void setLatency(int call, long nanos) {
+        latencyNanos[call] = nanos;
+    }
+
+    long getCalls(int call) {
+        return calls.get(call);
+    }
+
+    /**
+     * Runs posted work and frame callbacks on the calling thread until there is nothing left to run
+     */
+    void runUntilIdle() {
+        while (true) {
+            Runnable runnable = mainThreadQueue.poll();
+
+            if (runnable != null) {
+                runnable.run();
+            } else if (!frameCallbacks.isEmpty()) {
+                // Callbacks posted while a frame runs go to the next frame
+                List<Runnable> frame = new ArrayList<>();
+                for (Runnable callback; (callback = frameCallbacks.poll()) != null; ) {
+                    frame.add(callback);
+                }
+
+                for (Runnable callback : frame) {
+                    callback.run();
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves the clock of delayed work forward and runs everything that became due
+     */
+    void advanceTime(long millis) {
+        synchronized (delayedRunnables) {
+            uptimeMillis += millis;
+
+            for (Iterator<DelayedRunnable> iterator = delayedRunnables.iterator(); iterator.hasNext(); ) {
+                DelayedRunnable delayedRunnable = iterator.next();
+
+                if (delayedRunnable.uptimeMillis <= uptimeMillis) {
+                    mainThreadQueue.add(delayedRunnable.runnable);
+                    iterator.remove();
+                }
+            }
+        }
+
+        runUntilIdle();
+    }
+
+    @Override
+    public boolean isRuntimePermissionsEnabled() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public String[] getRequestedPermissions(@NonNull Context context) {
+        call(CALL_GET_REQUESTED_PERMISSIONS);
+        return manifestPermissions.clone();
+    }
+
+    @Override
+    public int checkSelfPermission(@NonNull Context context, @NonNull String permission) {
+        call(CALL_CHECK_SELF_PERMISSION);
+        return getState(permission) == STATE_GRANTED ? PackageManager.PERMISSION_GRANTED : PackageManager.PERMISSION_DENIED;
+    }
+
+    @Override
+    public boolean shouldShowRequestPermissionRationale(@NonNull Activity activity, @NonNull String permission) {
+        return shouldShowRequestPermissionRationale(permission);
+    }
+
+    @Override
+    public boolean startFragmentHost(@NonNull Activity activity, @NonNull PermissionRequest request) {
+        call(CALL_START_FRAGMENT_HOST);
+
+        // There are no real activities on the JVM to attach a fragment to
+        return false;
+    }
+
+    @Override
+    public boolean startActivityHost(@NonNull Context context, @NonNull PermissionRequest request) {
+        call(CALL_START_ACTIVITY_HOST);
+
+        if (failHostStarts) {
+            return false;
+        }
+
+        host = new SimulatedHost(request);
+        final PermissionRequestFlow flow = host.flow;
+        postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                flow.start();
+            }
+        }, hostStartDelayMillis);
+
+        return true;
+    }
+
+    @Override
+    public DialogInterface showDialog(@NonNull Activity activity, String title, String message,
+                                      @NonNull String positiveButton, @NonNull DialogInterface.OnClickListener positiveListener,
+                                      @NonNull String negativeButton, @NonNull DialogInterface.OnClickListener negativeListener) {
+        dialog = new SimulatedDialog(positiveListener, negativeListener);
+        return dialog;
+    }
+
+    @Override
+    public boolean isMainThread() {
+        return Thread.currentThread() == mainThread;
+    }
+
+    @Override
+    public void postToMainThread(@NonNull Runnable runnable, long delayMillis) {
+        if (delayMillis <= 0) {
+            mainThreadQueue.add(runnable);
+            return;
+        }
+
+        synchronized (delayedRunnables) {
+            delayedRunnables.add(new DelayedRunnable(uptimeMillis + delayMillis, runnable));
+        }
+    }
+
+    @Override
+    public void postFrameCallback(@NonNull Runnable runnable) {
+        frameCallbacks.add(runnable);
+    }
+
+    private boolean shouldShowRequestPermissionRationale(String permission) {
+        call(CALL_SHOULD_SHOW_RATIONALE);
+        return getState(permission) == STATE_DENIED;
+    }
+
+    /**
+     * Answers a system request the way Android does
+     * Granted permissions stay granted and blocked ones are denied without asking
+     */
+    private int[] requestPermissions(String[] permissions) {
+        call(CALL_REQUEST_PERMISSIONS);
+        int[] grantResults = new int[permissions.length];
+
+        for (int i = 0; i < permissions.length; i++) {
+            int state = getState(permissions[i]);
+
+            if (state != STATE_GRANTED && state != STATE_BLOCKED) {
+                Integer answer = answers.get(permissions[i]);
+                state = answer == null || answer == ANSWER_DENY ? STATE_DENIED
+                        : answer == ANSWER_GRANT ? STATE_GRANTED : STATE_BLOCKED;
+                states.put(permissions[i], state);
+            }
+
+            grantResults[i] = state == STATE_GRANTED ? PackageManager.PERMISSION_GRANTED : PackageManager.PERMISSION_DENIED;
+        }
+
+        return grantResults;
+    }
+
+    private int getState(String permission) {
+        Integer state = states.get(permission);
+        return state != null ? state : STATE_NEVER_ASKED;
+    }
+
+    private void setState(@PermissionGroup int permissionGroup, int state) {
+        for (String permission : PermissionUtil.getPermissionsFromGroup(permissionGroup)) {
+            states.put(permission, state);
+        }
+    }
+
+    private void call(int call) {
+        calls.incrementAndGet(call);
+
+        long latency = latencyNanos[call];
+        if (latency > 0) {
+            long end = System.nanoTime() + latency;
+
+            while (System.nanoTime() < end) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Stands in for PermissionsActivity, the system answers on the next main thread message
+     */
+    private class SimulatedHost implements PermissionRequestFlow.Host {
+        final PermissionRequestFlow flow;
+        final Activity activity = new Activity();
+
+        SimulatedHost(PermissionRequest request) {
+            flow = new PermissionRequestFlow(this, request);
+        }
+
+        @Override
+        public Activity getHostActivity() {
+            return activity;
+        }
+
+        @Override
+        public void requestPermissions(@NonNull final String[] permissions, int requestCode) {
+            final int[] grantResults = SimulatedPermissionSystem.this.requestPermissions(permissions);
+
+            postToMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    flow.onRequestPermissionsResult(permissions, grantResults);
+                }
+            }, 0);
+        }
+
+        @Override
+        public boolean shouldShowRequestPermissionRationale(@NonNull String permission) {
+            return SimulatedPermissionSystem.this.shouldShowRequestPermissionRationale(permission);
+        }
+
+        @Override
+        public void setBackgroundDimEnabled(boolean enabled) {}
+
+        @Override
+        public void finishFlow() {
+            if (host == this) {
+                host = null;
+            }
+        }
+    }
+
+    private class SimulatedDialog implements DialogInterface {
+        final DialogInterface.OnClickListener positiveListener, negativeListener;
+
+        SimulatedDialog(DialogInterface.OnClickListener positiveListener, DialogInterface.OnClickListener negativeListener) {
+            this.positiveListener = positiveListener;
+            this.negativeListener = negativeListener;
+        }
+
+        @Override
+        public void dismiss() {
+            if (dialog == this) {
+                dialog = null;
+            }
+        }
+    }
+
+    private static class DelayedRunnable {
+        final long uptimeMillis;
+        final Runnable runnable;
+
+        DelayedRunnable(long uptimeMillis, Runnable runnable) {
+            this.uptimeMillis = uptimeMillis;
+            this.runnable = runnable;
+        }
+    }
+}
@@ -13,6 +13,7 @@ import android.widget.TextView;
 import com.coonrade.organizedpermissions.OrganizedPermissions;
 import com.coonrade.organizedpermissions.PermissionGroup;
 import com.coonrade.organizedpermissions.PermissionListener;
+import com.coonrade.organizedpermissions.PermissionResult;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -31,7 +32,7 @@ public class MainActivity extends AppCompatActivity {
     public void runFindLocation(View view) {
         Log.v("Button", "pressed");
 
-        OrganizedPermissions.init(PermissionGroup.LOCATION, PermissionGroup.STORAGE)
+        OrganizedPermissions.init(this, PermissionGroup.LOCATION, PermissionGroup.STORAGE)
                 .enableRationaleDialog(false)
                 .enableBlockedDialog(true)
                 .enableBackgroundDim(true)
@@ -45,6 +46,12 @@ public class MainActivity extends AppCompatActivity {
                         findLocation();
                     }
 
+                    @Override
+                    public void onPermissionGroupsResult(int requestCode, PermissionResult result) {
+                        Log.v(TAG, "location granted: " + result.isGranted(PermissionGroup.LOCATION));
+                        Log.v(TAG, "storage granted: " + result.isGranted(PermissionGroup.STORAGE));
+                    }
+
                     @Override
                     public void onPermissionsDenied(int requestCode) {
                         Log.v(TAG, "denied");